@@ -18,6 +18,8 @@ class Chatroom extends JPanel {
     private final JLabel title = new JLabel();
     private final JTextField sendMessageTf = new JTextField();
     private Object currentGroup = null; //currently open Group or DirectMessage
+    private JScrollPane recentScroll;
+    private boolean positioning = false; //true while a reload sets the scroll position, so it doesn't count as the user scrolling
     
     //gets the currently open group or direct message
     Object getCurrentGroup() {
@@ -35,11 +37,25 @@ class Chatroom extends JPanel {
         add(title);
 
         listPanel.setLayout(new BoxLayout(listPanel, BoxLayout.Y_AXIS));
-        JScrollPane recentScroll = new JScrollPane(listPanel,
+        recentScroll = new JScrollPane(listPanel,
                 ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS,
                 ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
         recentScroll.setPreferredSize(new Dimension(400, 300));
         recentScroll.getVerticalScrollBar().setUnitIncrement(16);
+        //reaching the top asks the server for the previous page of history
+        recentScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = recentScroll.getVerticalScrollBar();
+            if (e.getValue() == bar.getMinimum() && bar.getMaximum() > bar.getVisibleAmount()) {
+                requestOlderMessages();
+            }
+        });
+        //short conversations don't scroll at all, so scrolling up on them counts too
+        recentScroll.addMouseWheelListener(e -> {
+            JScrollBar bar = recentScroll.getVerticalScrollBar();
+            if (e.getWheelRotation() < 0 && bar.getValue() == bar.getMinimum()) {
+                requestOlderMessages();
+            }
+        });
         add(Box.createVerticalStrut(16));
         add(recentScroll);
         add(Box.createVerticalStrut(24));
@@ -145,6 +161,12 @@ class Chatroom extends JPanel {
             return;
         }
         
+        //same conversation with more older messages than before: a page was added on top,
+        //keep the view where it is instead of jumping to the newest message
+        boolean prepended = sameConversation(currentGroup, groupObj) && olderMessageCount(groupObj) < olderMessageCount(currentGroup);
+        JScrollBar vertical = recentScroll.getVerticalScrollBar();
+        int fromBottom = vertical.getMaximum() - vertical.getValue();
+        
         currentGroup = groupObj;
         Client client = app.getClient();
         if (client == null || client.getMyUser() == null) {
@@ -180,8 +202,12 @@ class Chatroom extends JPanel {
         title.setText(displayName);
         
         //clear all existing messages completely
+        positioning = true;
         listPanel.removeAll();
         
+        if (olderMessageCount(groupObj) > 0) {
+            appendMessage("Scroll up for earlier messages");
+        }
         //rebuild all message components
         for (Message msg : messages) {
             String sender = msg.getSender();
@@ -204,13 +230,16 @@ class Chatroom extends JPanel {
             scrollPane.revalidate();
             scrollPane.repaint();
             
-            //scroll to bottom to show latest message
+            //scroll to bottom to show latest message, or back to the same spot after a page of older ones
             javax.swing.SwingUtilities.invokeLater(() -> {
-                JScrollBar vertical = scrollPane.getVerticalScrollBar();
-                if (vertical != null) {
-                    vertical.setValue(vertical.getMaximum());
+                JScrollBar bar = scrollPane.getVerticalScrollBar();
+                if (bar != null) {
+                    bar.setValue(prepended ? bar.getMaximum() - fromBottom : bar.getMaximum());
                 }
+                positioning = false;
             });
+        } else {
+            positioning = false;
         }
         
         //repaint this panel and all ancestors
@@ -305,6 +334,37 @@ class Chatroom extends JPanel {
         }
     }
 
+    //asks for the page before the oldest message shown, if the server has one
+    private void requestOlderMessages() {
+        Client client = app.getClient();
+        if (positioning || currentGroup == null || client == null || olderMessageCount(currentGroup) == 0) {
+            return;
+        }
+        try {
+            client.requestOlderMessages(currentGroup);
+        } catch (IOException ex) {
+            //try again on the next scroll
+        }
+    }
+    
+    private static int olderMessageCount(Object groupObj) {
+        if (groupObj instanceof Group) {
+            return ((Group) groupObj).getOlderMessageCount();
+        } else if (groupObj instanceof DirectMessage) {
+            return ((DirectMessage) groupObj).getOlderMessageCount();
+        }
+        return 0;
+    }
+    
+    private static boolean sameConversation(Object a, Object b) {
+        if (a instanceof Group && b instanceof Group) {
+            return ((Group) a).getGroupUID() == ((Group) b).getGroupUID();
+        } else if (a instanceof DirectMessage && b instanceof DirectMessage) {
+            return ((DirectMessage) a).getChatUID() == ((DirectMessage) b).getChatUID();
+        }
+        return false;
+    }
+
     void refreshAdminVisibility(boolean isAdmin) {
         //chatroom currently has no IT-only controls,
         // but the method exists for consistency    
@@ -9,6 +9,10 @@ class ChatroomIT extends JPanel {
     private final TeamChatApp app;
     private final JPanel listPanel = new JPanel();
     private final JLabel title = new JLabel();
+    private final JLabel status = new JLabel(" ");
+    private static final int MAX_ROWS = 2000; //a long history only keeps its newest rows on screen
+    private int streamId = -1; //stream being shown, chunks of any other one are ignored
+    private int dropped;
     private final JButton toSearch = new JButton("Go to another chat in Search");
 
     ChatroomIT(TeamChatApp app) {
@@ -20,6 +24,8 @@ class ChatroomIT extends JPanel {
         title.setFont(title.getFont().deriveFont(Font.BOLD, 22f));
         title.setAlignmentX(Component.CENTER_ALIGNMENT);
         add(title);
+        status.setAlignmentX(Component.CENTER_ALIGNMENT);
+        add(status);
 
         listPanel.setLayout(new BoxLayout(listPanel, BoxLayout.Y_AXIS));
         JScrollPane scroll = new JScrollPane(listPanel,
@@ -39,6 +45,8 @@ class ChatroomIT extends JPanel {
 
     void loadConversation(String otherUser, List<Message> messages) {
         title.setText(otherUser + "'s Messages (Admin View)");
+        status.setText(" ");
+        streamId = -1;
         listPanel.removeAll();
         
         if (messages == null || messages.isEmpty()) {
@@ -47,17 +55,65 @@ class ChatroomIT extends JPanel {
             listPanel.add(noMessagesLabel);
         } else {
             for (Message msg : messages) {
-                String displayText = "[" + msg.getTimestamp() + "] " + msg.getSender() + ": " + msg.getMessage();
-                JLabel lbl = new JLabel(displayText);
-                lbl.setAlignmentX(Component.LEFT_ALIGNMENT);
-                listPanel.add(lbl);
-                listPanel.add(Box.createVerticalStrut(4));
+                addRow(msg);
             }
         }
         revalidate();
         repaint();
     }
 
+    //empty view that fills in as the chunks of a GROUP/REQUEST stream arrive
+    void beginStream(String otherUser, int streamId) {
+        begin(otherUser + "'s Messages (Admin View)", streamId);
+    }
+
+    //same for the chunks of a QUERY/REQUEST
+    void beginQuery(String query, int streamId) {
+        begin("Query: " + query + " (Admin View)", streamId);
+    }
+
+    private void begin(String heading, int streamId) {
+        this.streamId = streamId;
+        dropped = 0;
+        title.setText(heading);
+        status.setText("Loading...");
+        listPanel.removeAll();
+        revalidate();
+        repaint();
+    }
+
+    //one chunk of the stream, total is -1 until the last one
+    void appendChunk(int streamId, List<Message> chunk, int total) {
+        if (streamId != this.streamId) {
+            return;
+        }
+        for (Message msg : chunk) {
+            addRow(msg);
+        }
+        while (listPanel.getComponentCount() > MAX_ROWS * 2) {
+            listPanel.remove(0); //row
+            listPanel.remove(0); //its strut
+            dropped++;
+        }
+        if (total == 0) {
+            status.setText("No messages found.");
+        } else if (total > 0) {
+            status.setText(total + " messages" + (dropped > 0 ? ", showing the newest " + (total - dropped) : ""));
+        } else {
+            status.setText("Loading... " + (listPanel.getComponentCount() / 2 + dropped) + " so far");
+        }
+        revalidate();
+        repaint();
+    }
+
+    private void addRow(Message msg) {
+        String displayText = "[" + msg.getTimestamp() + "] " + msg.getSender() + ": " + msg.getMessage();
+        JLabel lbl = new JLabel(displayText);
+        lbl.setAlignmentX(Component.LEFT_ALIGNMENT);
+        listPanel.add(lbl);
+        listPanel.add(Box.createVerticalStrut(4));
+    }
+
     void refreshAdminVisibility(boolean isAdmin) {
         toSearch.setVisible(isAdmin);
     }
@@ -2,9 +2,8 @@ package User.webpages;
 
 import java.awt.*;
 import javax.swing.*;
+import server.AdminQuery;
 import server.Client;
-import server.Message;
-import java.util.List;
 
 class SearchIT extends JPanel {
     private final TeamChatApp app;
@@ -27,7 +26,7 @@ class SearchIT extends JPanel {
         JTextField searchField = new JTextField();
         searchField.setMaximumSize(new Dimension(600, 40));
         searchField.setAlignmentX(Component.CENTER_ALIGNMENT);
-        new TextPrompt("Type to search", searchField);
+        new TextPrompt("Username, or from:Bob to:Alice group:4 dm:8 after:2024-01-15 before:2024-02-01 words", searchField);
 
         JPanel row = new JPanel();
         row.setLayout(new BoxLayout(row, BoxLayout.X_AXIS));
@@ -58,7 +57,7 @@ class SearchIT extends JPanel {
         searchButton.addActionListener(e -> {
             String query = searchField.getText().trim();
             if (query.isEmpty()) {
-                JOptionPane.showMessageDialog(this, "Enter a username to search.");
+                JOptionPane.showMessageDialog(this, "Enter a username or a query to search.");
                 return;
             }
             
@@ -79,20 +78,30 @@ class SearchIT extends JPanel {
                 return;
             }
             
-            //request all messages by this user from server
-            try {
-                client.requestUserMessages(query);
-                // Wait for response
-                Thread.sleep(1000);
-                List<Message> messages = client.getUserMessages(query);
-                if (messages == null || messages.isEmpty()) {
+            //anything more than a bare username goes to the admin query engine,
+            //its results are shown chunk by chunk as they arrive like a user's history
+            if (query.contains(":") || query.contains(" ")) {
+                try {
+                    int stream = client.queryMessages(AdminQuery.parse(query));
+                    app.openITQuery(query, stream);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, 
+                        ex.getMessage(), 
+                        "Invalid Query", 
+                        JOptionPane.ERROR_MESSAGE);
+                } catch (Exception ex) {
                     JOptionPane.showMessageDialog(this, 
-                        "User not found or has no messages.", 
-                        "Not Found", 
+                        "Error retrieving messages: " + ex.getMessage(), 
+                        "Error", 
                         JOptionPane.ERROR_MESSAGE);
-                } else {
-                    app.openITChat(query, messages);
                 }
+                return;
+            }
+            
+            //request all messages by this user from server, they are shown chunk by chunk as they arrive
+            try {
+                int stream = client.requestUserMessages(query);
+                app.openITStream(query, stream);
             } catch (Exception ex) {
                 JOptionPane.showMessageDialog(this, 
                     "Error retrieving messages: " + ex.getMessage(), 
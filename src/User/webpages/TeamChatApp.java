@@ -73,6 +73,9 @@ public class TeamChatApp extends JFrame {
                         JOptionPane.ERROR_MESSAGE);
                 });
             } else {
+                //a lost connection is replaced by a new Client, use that one from then on
+                client.setReconnectCallback(next -> SwingUtilities.invokeLater(() -> client = next));
+                
                 //set up callback for group updates IMMEDIATELY after connection
                 client.setGroupUpdateCallback(() -> {
                     //ensure callback runs on EDT
@@ -120,6 +123,10 @@ public class TeamChatApp extends JFrame {
                     });
                 });
                 
+                //admin history and query chunks go straight to the admin view
+                client.setUserMessagesCallback((streamId, username, chunk, total) ->
+                    SwingUtilities.invokeLater(() -> chatroomIT.appendChunk(streamId, chunk, total)));
+                
                 //also set up a periodic check to refresh SearchChat if groups arrive
                 //this is a backup in case callback doesn't work
                 Thread refreshCheck = new Thread(() -> {
@@ -183,6 +190,18 @@ public class TeamChatApp extends JFrame {
         showCard(CHATROOM_IT);
     }
 
+    //shows the admin view straight away, the messages of the stream fill it in as they arrive
+    void openITStream(String otherUser, int streamId) {
+        chatroomIT.beginStream(otherUser, streamId);
+        showCard(CHATROOM_IT);
+    }
+
+    //same for the results of an admin query
+    void openITQuery(String query, int streamId) {
+        chatroomIT.beginQuery(query, streamId);
+        showCard(CHATROOM_IT);
+    }
+
     void showSearchChat() {
         refreshAdminVisibility();
         if (searchChat != null) {
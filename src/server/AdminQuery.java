@@ -0,0 +1,217 @@
+package server;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+//an admin QUERY: every field is optional, a message has to match all of the ones that are set
+//on the wire it is a flat list of name/value pairs, e.g. ["sender", "Bob", "since", "2024-01-15T00:00", "limit", 50]
+//the SearchIT box takes the same thing as text: from:Bob to:Alice group:4 dm:8 after:2024-01-15 before:2024-02-01 words...
+public class AdminQuery {
+	public static final int DEFAULT_LIMIT = 200;
+	public static final int MAX_LIMIT = 5000;
+
+	private String sender;
+	private String recipient;
+	private String conversation; //"GROUP|uid" or "DM|uid"
+	private LocalDateTime since; //inclusive
+	private LocalDateTime until; //exclusive
+	private String text; //every term has to be in the message
+	private int offset;
+	private int limit = DEFAULT_LIMIT;
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getRecipient() {
+		return recipient;
+	}
+
+	public String getConversation() {
+		return conversation;
+	}
+
+	public LocalDateTime getSince() {
+		return since;
+	}
+
+	public LocalDateTime getUntil() {
+		return until;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public AdminQuery sender(String sender) {
+		this.sender = sender;
+		return this;
+	}
+
+	public AdminQuery recipient(String recipient) {
+		this.recipient = recipient;
+		return this;
+	}
+
+	public AdminQuery conversation(String kind, int uid) {
+		this.conversation = ("GROUP".equalsIgnoreCase(kind) ? "GROUP|" : "DM|") + uid;
+		return this;
+	}
+
+	public AdminQuery since(LocalDateTime since) {
+		this.since = since;
+		return this;
+	}
+
+	public AdminQuery until(LocalDateTime until) {
+		this.until = until;
+		return this;
+	}
+
+	public AdminQuery text(String text) {
+		this.text = text;
+		return this;
+	}
+
+	public AdminQuery page(int offset, int limit) {
+		this.offset = Math.max(0, offset);
+		this.limit = limit <= 0 ? DEFAULT_LIMIT : Math.min(limit, MAX_LIMIT);
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return sender == null && recipient == null && conversation == null && since == null && until == null
+				&& (text == null || MessageIndex.terms(text).isEmpty());
+	}
+
+	//name/value pairs for a QUERY/REQUEST
+	public List<Object> toContent() {
+		List<Object> content = new ArrayList<>();
+		put(content, "sender", sender);
+		put(content, "recipient", recipient);
+		put(content, "conversation", conversation);
+		put(content, "since", since == null ? null : since.toString());
+		put(content, "until", until == null ? null : until.toString());
+		put(content, "text", text);
+		content.add("offset");
+		content.add(offset);
+		content.add("limit");
+		content.add(limit);
+		return content;
+	}
+
+	private static void put(List<Object> content, String name, Object value) {
+		if (value != null) {
+			content.add(name);
+			content.add(value);
+		}
+	}
+
+	//reads the pairs back, unknown names are skipped
+	public static AdminQuery fromContent(List<Object> content) {
+		AdminQuery query = new AdminQuery();
+		int offset = 0;
+		int limit = DEFAULT_LIMIT;
+		for (int i = 0; i + 1 < content.size(); i += 2) {
+			String name = String.valueOf(content.get(i));
+			Object value = content.get(i + 1);
+			switch (name) {
+				case "sender":
+					query.sender = String.valueOf(value);
+					break;
+				case "recipient":
+					query.recipient = String.valueOf(value);
+					break;
+				case "conversation":
+					query.conversation = String.valueOf(value);
+					break;
+				case "since":
+					query.since = LocalDateTime.parse(String.valueOf(value));
+					break;
+				case "until":
+					query.until = LocalDateTime.parse(String.valueOf(value));
+					break;
+				case "text":
+					query.text = String.valueOf(value);
+					break;
+				case "offset":
+					offset = value instanceof Integer ? (Integer) value : 0;
+					break;
+				case "limit":
+					limit = value instanceof Integer ? (Integer) value : DEFAULT_LIMIT;
+					break;
+				default:
+					break;
+			}
+		}
+		return query.page(offset, limit);
+	}
+
+	//the SearchIT syntax, anything without a known prefix is search text
+	//after:/before: take a date (whole days) or a full timestamp
+	public static AdminQuery parse(String input) {
+		AdminQuery query = new AdminQuery();
+		StringBuilder words = new StringBuilder();
+		for (String token : input.trim().split("\\s+")) {
+			int colon = token.indexOf(':');
+			String name = colon > 0 ? token.substring(0, colon).toLowerCase() : "";
+			String value = colon > 0 ? token.substring(colon + 1) : token;
+			try {
+				switch (name) {
+					case "from":
+						query.sender = value;
+						continue;
+					case "to":
+						query.recipient = value;
+						continue;
+					case "group":
+						query.conversation("GROUP", Integer.parseInt(value));
+						continue;
+					case "dm":
+						query.conversation("DM", Integer.parseInt(value));
+						continue;
+					case "after":
+						query.since = parseTime(value);
+						continue;
+					case "before":
+						query.until = parseTime(value);
+						continue;
+					default:
+						break;
+				}
+			} catch (NumberFormatException | DateTimeParseException e) {
+				throw new IllegalArgumentException("Bad value in " + token);
+			}
+			if (words.length() > 0) {
+				words.append(' ');
+			}
+			words.append(token);
+		}
+		if (words.length() > 0) {
+			query.text = words.toString();
+		}
+		return query;
+	}
+
+	private static LocalDateTime parseTime(String value) {
+		if (value.indexOf('T') < 0) {
+			return LocalDate.parse(value).atStartOfDay();
+		}
+		return LocalDateTime.parse(value);
+	}
+
+	public String toString() {
+		return toContent().toString();
+	}
+}
@@ -0,0 +1,367 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+//compact hand written frame codec, no class descriptors or object graphs on the wire
+//packet: [type ordinal][status][content value]
+//value:  [tag][payload], lengths and numbers as varints, strings as utf-8,
+//        timestamps as epoch seconds (utc) + nanos
+//message:  [timestamp][text][sender][recipients][seq][id, "" for none]
+//group/dm: [uid][members][messages][older message count]
+public class BinaryPacketCodec implements PacketCodec {
+	private static final int TAG_NULL = 0;
+	private static final int TAG_STRING = 1;
+	private static final int TAG_INT = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_BOOLEAN = 4;
+	private static final int TAG_LIST = 5;
+	private static final int TAG_USER = 6;
+	private static final int TAG_LOGIN_INFO = 7;
+	private static final int TAG_MESSAGE = 8;
+	private static final int TAG_GROUP = 9;
+	private static final int TAG_DIRECT_MESSAGE = 10;
+
+	private static final Type[] TYPES = Type.values();
+
+	@Override
+	public byte getId() {
+		return BINARY;
+	}
+
+	@Override
+	public byte[] encode(Packet packet) throws IOException {
+		Writer w = new Writer();
+		w.varint(packet.getType().ordinal());
+		w.string(packet.getStatus());
+		w.value(packet.getcontent());
+		return w.toByteArray();
+	}
+
+	@Override
+	public Packet decode(byte[] data, int offset, int length) throws IOException {
+		Reader r = new Reader(data, offset, length);
+		int type = r.varint();
+		if (type < 0 || type >= TYPES.length) {
+			throw new IOException("Unknown packet type " + type);
+		}
+		String status = r.string();
+		Object content = r.value();
+		if (content != null && !(content instanceof List<?>)) {
+			throw new IOException("Packet content must be a list");
+		}
+		@SuppressWarnings("unchecked")
+		List<Object> list = (List<Object>) content;
+		return new Packet(TYPES[type], status, list);
+	}
+
+	//growable output buffer, one per encode
+	private static final class Writer {
+		private byte[] buf = new byte[256];
+		private int pos = 0;
+
+		private void ensure(int n) {
+			if (pos + n > buf.length) {
+				byte[] bigger = new byte[Math.max(buf.length * 2, pos + n)];
+				System.arraycopy(buf, 0, bigger, 0, pos);
+				buf = bigger;
+			}
+		}
+
+		void varint(int v) {
+			varlong(v & 0xFFFFFFFFL);
+		}
+
+		void varlong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		void zigzag(long v) {
+			varlong((v << 1) ^ (v >> 63));
+		}
+
+		void bool(boolean b) {
+			ensure(1);
+			buf[pos++] = (byte) (b ? 1 : 0);
+		}
+
+		//null is length 0, real strings are length + 1
+		void string(String s) {
+			if (s == null) {
+				varint(0);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			varint(bytes.length + 1);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			pos += bytes.length;
+		}
+
+		void timestamp(LocalDateTime t) {
+			zigzag(t.toEpochSecond(ZoneOffset.UTC));
+			varint(t.getNano());
+		}
+
+		void strings(List<String> list) {
+			varint(list.size());
+			for (String s : list) {
+				string(s);
+			}
+		}
+
+		void message(Message m) {
+			timestamp(m.getTimestamp());
+			string(m.getMessage());
+			string(m.getSender());
+			strings(m.getRecipients());
+			varlong(m.getSeq());
+			string(m.getId() == null ? "" : m.getId());
+		}
+
+		void messages(List<Message> list) {
+			varint(list.size());
+			for (Message m : list) {
+				message(m);
+			}
+		}
+
+		void value(Object o) throws IOException {
+			if (o == null) {
+				varint(TAG_NULL);
+			} else if (o instanceof String) {
+				varint(TAG_STRING);
+				string((String) o);
+			} else if (o instanceof Integer) {
+				varint(TAG_INT);
+				zigzag((Integer) o);
+			} else if (o instanceof Long) {
+				varint(TAG_LONG);
+				zigzag((Long) o);
+			} else if (o instanceof Boolean) {
+				varint(TAG_BOOLEAN);
+				bool((Boolean) o);
+			} else if (o instanceof List<?>) {
+				List<?> list = (List<?>) o;
+				varint(TAG_LIST);
+				varint(list.size());
+				for (Object item : list) {
+					value(item);
+				}
+			} else if (o instanceof User) {
+				User u = (User) o;
+				varint(TAG_USER);
+				string(u.getUsername());
+				string(u.getPassword());
+				bool(u.isAdmin());
+				bool(u.isStatus());
+			} else if (o instanceof LoginInfo) {
+				LoginInfo info = (LoginInfo) o;
+				varint(TAG_LOGIN_INFO);
+				string(info.getUsername());
+				string(info.getPassword());
+			} else if (o instanceof Message) {
+				varint(TAG_MESSAGE);
+				message((Message) o);
+			} else if (o instanceof Group) {
+				Group g = (Group) o;
+				varint(TAG_GROUP);
+				varint(g.getGroupUID());
+				strings(g.getGroupUsers());
+				messages(g.getMessages());
+				varint(g.getOlderMessageCount());
+			} else if (o instanceof DirectMessage) {
+				DirectMessage dm = (DirectMessage) o;
+				varint(TAG_DIRECT_MESSAGE);
+				varint(dm.getChatUID());
+				strings(dm.getGroupUsers());
+				messages(dm.getMessage());
+				varint(dm.getOlderMessageCount());
+			} else {
+				throw new IOException("Can't encode " + o.getClass().getName());
+			}
+		}
+
+		byte[] toByteArray() {
+			byte[] out = new byte[pos];
+			System.arraycopy(buf, 0, out, 0, pos);
+			return out;
+		}
+	}
+
+	//reads straight out of the frame array, no copies except the final strings
+	private static final class Reader {
+		private static final int MAX_DEPTH = 32; //nested lists, a frame of nothing but list tags would otherwise overflow the stack
+
+		private final byte[] buf;
+		private int pos;
+		private final int end;
+		private int depth;
+
+		Reader(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		private int next() throws IOException {
+			if (pos >= end) {
+				throw new IOException("Truncated frame");
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		long varlong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = next();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("Bad varint");
+		}
+
+		int varint() throws IOException {
+			return (int) varlong();
+		}
+
+		long zigzag() throws IOException {
+			long v = varlong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		//collection sizes are capped by what is left in the frame, so a bad count can't allocate gigabytes
+		int count() throws IOException {
+			int n = varint();
+			if (n < 0 || n > end - pos) {
+				throw new IOException("Bad count " + n);
+			}
+			return n;
+		}
+
+		boolean bool() throws IOException {
+			return next() != 0;
+		}
+
+		String string() throws IOException {
+			int n = varint();
+			if (n == 0) {
+				return null;
+			}
+			n--;
+			if (n < 0 || n > end - pos) {
+				throw new IOException("Bad string length " + n);
+			}
+			String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+
+		//fields out of LocalDateTime's range are a bad frame like any other, not a runtime exception
+		LocalDateTime timestamp() throws IOException {
+			long seconds = zigzag();
+			int nanos = varint();
+			try {
+				return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+			} catch (DateTimeException e) {
+				throw new IOException("Bad timestamp " + seconds + "s " + nanos + "ns");
+			}
+		}
+
+		List<String> strings() throws IOException {
+			int n = count();
+			List<String> list = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				list.add(string());
+			}
+			return list;
+		}
+
+		Message message() throws IOException {
+			LocalDateTime timestamp = timestamp();
+			String text = string();
+			String sender = string();
+			Message m = new Message(timestamp, text, sender, strings());
+			m.setSeq(varlong());
+			String id = string(); //null from a frame that wasn't written by encode, taken as no id too
+			if (id != null && !id.isEmpty()) {
+				m.setId(id);
+			}
+			return m;
+		}
+
+		List<Message> messages() throws IOException {
+			int n = count();
+			List<Message> list = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				list.add(message());
+			}
+			return list;
+		}
+
+		Object value() throws IOException {
+			int tag = varint();
+			switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return string();
+			case TAG_INT:
+				return (int) zigzag();
+			case TAG_LONG:
+				return zigzag();
+			case TAG_BOOLEAN:
+				return bool();
+			case TAG_LIST: {
+				int n = count();
+				if (++depth > MAX_DEPTH) {
+					throw new IOException("Lists nested too deep");
+				}
+				List<Object> list = new ArrayList<>(n);
+				for (int i = 0; i < n; i++) {
+					list.add(value());
+				}
+				depth--;
+				return list;
+			}
+			case TAG_USER: {
+				User u = new User(string(), string(), bool());
+				u.setStatus(bool());
+				return u;
+			}
+			case TAG_LOGIN_INFO:
+				return new LoginInfo(string(), string());
+			case TAG_MESSAGE:
+				return message();
+			case TAG_GROUP: {
+				int uid = varint();
+				List<String> users = strings();
+				Group g = new Group(uid, users, messages());
+				g.setOlderMessageCount(varint());
+				return g;
+			}
+			case TAG_DIRECT_MESSAGE: {
+				int uid = varint();
+				List<String> users = strings();
+				DirectMessage dm = new DirectMessage(uid, users, messages());
+				dm.setOlderMessageCount(varint());
+				return dm;
+			}
+			default:
+				throw new IOException("Unknown value tag " + tag);
+			}
+		}
+	}
+}
@@ -6,11 +6,16 @@ import java.time.LocalDateTime;
 import java.io.*;
 import java.util.Scanner;
 import java.util.Collections;
+import java.util.function.Consumer;
 
 public class Client {
 
 	private final ObjectOutputStream out;
 	private final ObjectInputStream in;
+	//framed connection (length prefixed frames through a PacketCodec), used instead of out/in
+	private final DataOutputStream frameOut;
+	private final DataInputStream frameIn;
+	private final PacketCodec codec;
 	private volatile Boolean loggedIn; // true if login is successful
 	private User myUser;
 	private List<Object> myGroups = new ArrayList<>(); // stores Group and DirectMessage objects
@@ -21,9 +26,39 @@ public class Client {
 	// GUI update callback (set by TeamChatApp)
 	private Runnable groupUpdateCallback = null;
 	
+	// GUI reconnect callback (set by TeamChatApp), gets the Client that replaced this one
+	private Consumer<Client> reconnectCallback = null;
+	
+	//where this client connected and how, so a reconnect goes back to the same server
+	private SocketAddress remote;
+	private String wire;
+	
+	//the last login sent, a lost connection logs in again with it; loggedOut stops that after a logout
+	private String loginUsername;
+	private String loginPassword;
+	private volatile boolean loggedOut;
+	
+	//connection loss: tries to connect again this many times, waiting twice as long each time
+	private static final int RECONNECT_ATTEMPTS = Integer.getInteger("chat.reconnect.attempts", 8);
+	private static final long RECONNECT_DELAY = Long.getLong("chat.reconnect.delayMillis", 250);
+	private static final long RECONNECT_MAX_DELAY = 10_000;
+	
 	public Client(ObjectOutputStream out, ObjectInputStream in) {
 		this.out = out;
 		this.in = in;
+		this.frameOut = null;
+		this.frameIn = null;
+		this.codec = null;
+		this.loggedIn = false;
+	}
+	
+	//framed client, caller already wrote the codec handshake byte
+	public Client(DataOutputStream frameOut, DataInputStream frameIn, PacketCodec codec) {
+		this.out = null;
+		this.in = null;
+		this.frameOut = frameOut;
+		this.frameIn = frameIn;
+		this.codec = codec;
 		this.loggedIn = false;
 	}
 
@@ -37,10 +72,7 @@ public class Client {
 			String host = InetAddress.getLocalHost().getHostName();
 			Socket socket = new Socket(host, port);
 			
-			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-			
-			Client client = new Client(out, in);
+			Client client = connect(socket, System.getProperty("chat.wire", "object"));
 			instance = client; // set static instance for GUI access
 			PacketHandler packetHandler = new PacketHandler(client);
 			
@@ -55,6 +87,76 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Connects again after the connection dropped, to the same server and over the same wire,
+	 * keeping the conversations the previous Client had, its unconfirmed sends, its login and its GUI callbacks.
+	 * The next sendLogin tells the server the last message seen in each conversation,
+	 * so only missed messages are sent back instead of the full state.
+	 * Called by the listener when the connection is lost, see connectionLost.
+	 */
+	public static Client reconnect(Client previous) {
+		Client client;
+		if (previous != null && previous.remote != null) {
+			try {
+				Socket socket = new Socket();
+				socket.connect(previous.remote);
+				client = connect(socket, previous.wire);
+			} catch (IOException e) {
+				return null;
+			}
+		} else {
+			client = createAndConnect();
+		}
+		if (client != null && previous != null) {
+			List<Object> kept = previous.getMyGroups();
+			synchronized (client) {
+				client.myGroups.addAll(kept);
+				synchronized (previous) {
+					client.groupUpdateCallback = previous.groupUpdateCallback;
+					client.reconnectCallback = previous.reconnectCallback;
+					client.unacknowledged.putAll(previous.unacknowledged);
+					client.myUser = previous.myUser;
+					client.loggedIn = previous.loggedIn; //logging back in, so a drop before the reply reconnects again
+					client.loginUsername = previous.loginUsername;
+					client.loginPassword = previous.loginPassword;
+				}
+			}
+			if (previous.remote != null) {
+				instance = client;
+				client.startListening(new PacketHandler(client));
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Sets up the streams for an open socket.
+	 * wire "object" is the plain object stream, "framed" uses length prefixed frames of
+	 * serialized packets and "binary" uses frames in the compact BinaryPacketCodec format.
+	 * Framed wires are required when the server runs the NIO transport.
+	 * The codec is negotiated by the handshake byte, the server picks whatever the client names.
+	 */
+	public static Client connect(Socket socket, String wire) throws IOException {
+		if ("framed".equalsIgnoreCase(wire) || "binary".equalsIgnoreCase(wire)) {
+			socket.setTcpNoDelay(true);
+			PacketCodec codec = "binary".equalsIgnoreCase(wire) ? new BinaryPacketCodec() : new SerializedPacketCodec();
+			DataOutputStream frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			frameOut.writeByte(codec.getId()); //handshake
+			frameOut.flush();
+			DataInputStream frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			Client client = new Client(frameOut, frameIn, codec);
+			client.remote = socket.getRemoteSocketAddress();
+			client.wire = wire;
+			return client;
+		}
+		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+		Client client = new Client(out, in);
+		client.remote = socket.getRemoteSocketAddress();
+		client.wire = wire;
+		return client;
+	}
+
 	public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
 		// ************************************************************
 		// CONNECT TO SERVER
@@ -86,9 +188,7 @@ public class Client {
 		User newUser = new User(newUsername, newPassword, isAdmin);
 		Packet newUserRequest = new Packet(Type.USERS, "REQUEST", List.of(newUser));
 		// send packet
-		out.writeObject(newUserRequest);
-		// clears
-		out.flush();
+		writePacket(newUserRequest);
 	}
 
 	// ************************************************************
@@ -100,12 +200,17 @@ public class Client {
 		List<Message> newMessageList = new ArrayList<>();
 		String sender = myUser.getUsername();
 		Message newMessge = new Message(LocalDateTime.now(), textToBeSent, sender, recipients);
+		newMessge.setId(UUID.randomUUID().toString()); //lets the server drop it if this send is ever retried
+		synchronized (this) {
+			unacknowledged.put(newMessge.getId(), newMessge);
+			if (unacknowledged.size() > MAX_UNACKNOWLEDGED) {
+				unacknowledged.remove(unacknowledged.keySet().iterator().next());
+			}
+		}
 		newMessageList.add(newMessge);
 		Packet newMessageRequest = new Packet(Type.MESSAGES, "REQUEST", List.of(newMessageList));
 		// send packet
-		out.writeObject(newMessageRequest);
-		// clears
-		out.flush();
+		writePacket(newMessageRequest);
 	}// verify new message and send the same message back to add to chat
 	
 
@@ -121,12 +226,22 @@ public class Client {
 		LoginInfo myInfo = new LoginInfo(username, password);
 		// add info to list
 		logData.add(myInfo);
-		// create packet
-		Packet loginInfo = new Packet(Type.LOGIN, "REQUEST", List.of(logData));
+		// create packet, a client that kept conversations from an earlier connection also says how far
+		// it got in each one (kind, uid, last seq) and is only sent what it missed (GROUP/SYNC)
+		List<Object> content = new ArrayList<>();
+		content.add(logData);
+		List<Object> lastSeen = getLastSeen();
+		if (!lastSeen.isEmpty()) {
+			content.add(lastSeen);
+		}
+		Packet loginInfo = new Packet(Type.LOGIN, "REQUEST", content);
+		synchronized (this) {
+			loginUsername = username;
+			loginPassword = password;
+		}
+		loggedOut = false;
 		// send packet
-		out.writeObject(loginInfo);
-		// clears
-		out.flush();
+		writePacket(loginInfo);
 	}// add server sending a user.
 	// ************************************************************
 	// SENDING LOGOUT
@@ -134,18 +249,189 @@ public class Client {
 	public void sendLogout() throws IOException {
 		List<LoginInfo> empty = new ArrayList<>();
 		Packet logoutRequest = new Packet(Type.LOGOUT, "REQUEST", List.of(empty));
+		loggedOut = true; //the server closing the connection now is no reason to reconnect
 		// send packet
-		out.writeObject(logoutRequest);
-		// clears
-		out.flush();
+		writePacket(logoutRequest);
 	}
 	
 	//request user messages (Admin feature)
 	//requests all messages sent by a specific user
-	public void requestUserMessages(String username) throws IOException {
-		Packet requestPacket = new Packet(Type.GROUP, "REQUEST", List.of(username));
-		out.writeObject(requestPacket);
-		out.flush();
+	//they arrive in chunks, see appendUserMessages and setUserMessagesCallback; returns the stream id
+	public int requestUserMessages(String username) throws IOException {
+		return requestUserMessages(username, null, null, 0, -1);
+	}
+	
+	//same, limited to from <= timestamp < to (null for an open end) and paged with offset/limit (negative: no limit)
+	public int requestUserMessages(String username, LocalDateTime from, LocalDateTime to, int offset, int limit) throws IOException {
+		int id;
+		synchronized (this) {
+			id = nextStreamId++;
+			userMessagesStream.put(username, id); //replaces any earlier request for this user
+			userMessagesCache.put(username, new ArrayList<>());
+			userMessagesTotal.remove(username);
+		}
+		List<Object> content = new ArrayList<>();
+		content.add(username);
+		content.add(from == null ? "" : from.toString());
+		content.add(to == null ? "" : to.toString());
+		content.add(offset);
+		content.add(limit);
+		content.add(id);
+		writePacket(new Packet(Type.GROUP, "REQUEST", content));
+		return id;
+	}
+	
+	//full text search over this user's conversations (all of them for admins), page starts at 0
+	//the results come back as SEARCH/RESULTS, see getSearchResults
+	public void searchMessages(String query, int page) throws IOException {
+		List<Object> content = new ArrayList<>();
+		content.add(query);
+		content.add(page);
+		writePacket(new Packet(Type.SEARCH, "REQUEST", content));
+	}
+	
+	//admin query over sender, recipient, conversation, time range and text, see AdminQuery
+	//the results stream back in QUERY/CHUNKs, each is passed to the UserMessagesCallback as it arrives
+	//and all of them are in getQueryResults once the query has ended; returns the stream id
+	public int queryMessages(AdminQuery query) throws IOException {
+		int id;
+		synchronized (this) {
+			id = nextStreamId++;
+			queryStream = id; //chunks of any earlier query are cancelled from here on
+			queryPending = new ArrayList<>();
+			queryPlan = null;
+			queryResults = null;
+		}
+		List<Object> content = query.toContent();
+		content.add(id);
+		writePacket(new Packet(Type.QUERY, "REQUEST", content));
+		return id;
+	}
+	
+	//asks for the page of messages just before the oldest one this client has of a conversation
+	//returns false if there is nothing older or a page for it is already on the way
+	public boolean requestOlderMessages(Object conversation) throws IOException {
+		String kind;
+		int uid;
+		int older;
+		String before = ""; //cursor: the oldest message this client has, none pages back from the newest
+		long beforeKey = 0;
+		if (conversation instanceof Group) {
+			kind = "GROUP";
+			uid = ((Group) conversation).getGroupUID();
+		} else if (conversation instanceof DirectMessage) {
+			kind = "DM";
+			uid = ((DirectMessage) conversation).getChatUID();
+		} else {
+			return false;
+		}
+		synchronized (this) {
+			//use the client's own copy, the caller's may be older than the last page
+			Object latest = "GROUP".equals(kind) ? getGroupById(uid) : getDirectMessageById(uid);
+			if (latest == null) {
+				latest = conversation;
+			}
+			older = latest instanceof Group ? ((Group) latest).getOlderMessageCount() : ((DirectMessage) latest).getOlderMessageCount();
+			if (older <= 0 || !pendingHistory.add(kind + "|" + uid)) {
+				return false;
+			}
+			List<Message> messages = latest instanceof Group ? ((Group) latest).getMessages() : ((DirectMessage) latest).getMessage();
+			if (!messages.isEmpty()) {
+				before = messages.get(0).getTimestamp().toString();
+				beforeKey = Message.seqKey(messages, 0);
+			}
+		}
+		List<Object> content = new ArrayList<>();
+		content.add(kind);
+		content.add(uid);
+		content.add(before);
+		content.add(beforeKey);
+		Packet historyRequest = new Packet(Type.HISTORY, "REQUEST", content);
+		try {
+			writePacket(historyRequest);
+		} catch (IOException e) {
+			synchronized (this) {
+				pendingHistory.remove(kind + "|" + uid);
+			}
+			throw e;
+		}
+		return true;
+	}
+	
+	//flat kind, uid, seq list of the highest message seq this client has of each conversation
+	private synchronized List<Object> getLastSeen() {
+		List<Object> lastSeen = new ArrayList<>();
+		for (Object groupObj : myGroups) {
+			List<Message> messages;
+			if (groupObj instanceof Group) {
+				lastSeen.add("GROUP");
+				lastSeen.add(((Group) groupObj).getGroupUID());
+				messages = ((Group) groupObj).getMessages();
+			} else if (groupObj instanceof DirectMessage) {
+				lastSeen.add("DM");
+				lastSeen.add(((DirectMessage) groupObj).getChatUID());
+				messages = ((DirectMessage) groupObj).getMessage();
+			} else {
+				continue;
+			}
+			lastSeen.add(Message.lastSeq(messages));
+		}
+		return lastSeen;
+	}
+	
+	//one writer at a time, gui and listener threads both send
+	private void writePacket(Packet packet) throws IOException {
+		if (codec != null) {
+			synchronized (frameOut) {
+				PacketFraming.writeFrame(frameOut, codec, packet);
+				frameOut.flush();
+			}
+		} else {
+			synchronized (out) {
+				out.writeObject(packet);
+				out.flush();
+				out.reset(); //don't keep every sent packet in the stream handle table
+			}
+		}
+	}
+	
+	private Packet readPacket() throws IOException, ClassNotFoundException {
+		if (codec != null) {
+			return PacketFraming.readFrame(frameIn, codec);
+		}
+		return (Packet) in.readObject();
+	}
+	
+	//sends whose own GROUP/APPEND echo (or MESSAGES/SENT for a retry) hasn't come back yet, by message id
+	//a reconnect resends what the sync shows never arrived, the server only confirms any that did
+	private static final int MAX_UNACKNOWLEDGED = 1000;
+	private final Map<String, Message> unacknowledged = new LinkedHashMap<>();
+	
+	synchronized void acknowledge(List<Message> messages) {
+		for (Message m : messages) {
+			if (m.getId() != null) {
+				unacknowledged.remove(m.getId());
+			}
+		}
+	}
+	
+	//after a reconnect's GROUP/SYNC: sends again whatever the server never echoed back
+	public void resendUnacknowledged() throws IOException {
+		List<Message> pending;
+		synchronized (this) {
+			pending = new ArrayList<>(unacknowledged.values());
+		}
+		if (!pending.isEmpty()) {
+			writePacket(new Packet(Type.MESSAGES, "REQUEST", List.of(pending)));
+		}
+	}
+	
+	//"GROUP|uid"/"DM|uid" of conversations with a HISTORY request in flight
+	private final Set<String> pendingHistory = new HashSet<>();
+	
+	//a HISTORY request was refused (its cursor message wasn't found), errors don't say which one so all are let go
+	public synchronized void clearPendingHistory() {
+		pendingHistory.clear();
 	}
 	
 	//store for user messages received from server
@@ -158,6 +444,156 @@ public class Client {
 	public synchronized void setUserMessages(String username, List<Message> messages) {
 		userMessagesCache.put(username, messages);
 	}
+	
+	//admin history streams: latest stream id per user, chunks of any other stream are stale and cancelled
+	//the cache keeps the newest MAX_USER_MESSAGES of a stream, older ones are only shown as they pass through
+	private static final int MAX_USER_MESSAGES = Integer.getInteger("chat.stream.keep", 2000);
+	private int nextStreamId = 1;
+	private final Map<String, Integer> userMessagesStream = new HashMap<>();
+	private final Map<String, Integer> userMessagesTotal = new HashMap<>(); //set once a stream has ended
+	private UserMessagesCallback userMessagesCallback = null;
+	
+	//told about every chunk as it arrives, total is -1 until the stream has ended (chunk is then empty)
+	//admin QUERY streams come through here too, with a null username
+	public interface UserMessagesCallback {
+		void onUserMessages(int streamId, String username, List<Message> chunk, int total);
+	}
+	
+	public synchronized void setUserMessagesCallback(UserMessagesCallback callback) {
+		this.userMessagesCallback = callback;
+	}
+	
+	//applies a GROUP/CHUNK and asks the server for the next one
+	public void appendUserMessages(int streamId, String username, List<Message> chunk) {
+		UserMessagesCallback callback;
+		boolean current;
+		synchronized (this) {
+			current = isCurrentStream(username, streamId);
+			if (current) {
+				List<Message> cached = userMessagesCache.computeIfAbsent(username, u -> new ArrayList<>());
+				cached.addAll(chunk);
+				if (cached.size() > MAX_USER_MESSAGES) {
+					cached.subList(0, cached.size() - MAX_USER_MESSAGES).clear();
+				}
+			}
+			callback = userMessagesCallback;
+		}
+		try {
+			writePacket(new Packet(Type.GROUP, current ? "MORE" : "CANCEL", List.of(streamId)));
+		} catch (IOException e) {
+			return;
+		}
+		if (current && callback != null) {
+			callback.onUserMessages(streamId, username, chunk, -1);
+		}
+	}
+	
+	//applies a GROUP/END
+	public void endUserMessages(int streamId, String username, int total) {
+		UserMessagesCallback callback;
+		synchronized (this) {
+			if (!isCurrentStream(username, streamId)) {
+				return;
+			}
+			userMessagesTotal.put(username, total);
+			callback = userMessagesCallback;
+		}
+		if (callback != null) {
+			callback.onUserMessages(streamId, username, Collections.emptyList(), total);
+		}
+	}
+	
+	//how many messages the last stream for username delivered, null while it is still running
+	public synchronized Integer getUserMessagesTotal(String username) {
+		return userMessagesTotal.get(username);
+	}
+	
+	private synchronized boolean isCurrentStream(String username, int streamId) {
+		Integer current = userMessagesStream.get(username);
+		return current != null && current == streamId;
+	}
+	
+	//latest QUERY: its chunks collect in queryPending, the results are null until its QUERY/END
+	private int queryStream;
+	private List<Message> queryPending = new ArrayList<>();
+	private String queryPlan;
+	private List<Message> queryResults;
+	
+	//applies a QUERY/CHUNK and asks the server for the next one
+	public void appendQueryResults(int streamId, List<Message> chunk) {
+		UserMessagesCallback callback;
+		boolean current;
+		synchronized (this) {
+			current = streamId == queryStream;
+			if (current) {
+				queryPending.addAll(chunk);
+			}
+			callback = userMessagesCallback;
+		}
+		try {
+			writePacket(new Packet(Type.QUERY, current ? "MORE" : "CANCEL", List.of(streamId)));
+		} catch (IOException e) {
+			return;
+		}
+		if (current && callback != null) {
+			callback.onUserMessages(streamId, null, chunk, -1);
+		}
+	}
+	
+	//applies a QUERY/END
+	public void endQueryResults(int streamId, String plan) {
+		UserMessagesCallback callback;
+		int total;
+		synchronized (this) {
+			if (streamId != queryStream) {
+				return;
+			}
+			queryPlan = plan;
+			queryResults = queryPending;
+			total = queryResults.size();
+			callback = userMessagesCallback;
+		}
+		if (callback != null) {
+			callback.onUserMessages(streamId, null, Collections.emptyList(), total);
+		}
+	}
+	
+	public synchronized String getQueryPlan() {
+		return queryPlan;
+	}
+	
+	public synchronized List<Message> getQueryResults() {
+		return queryResults;
+	}
+	
+	//latest SEARCH/RESULTS: hits are [kind, uid, position, Message], best first
+	private String searchQuery;
+	private int searchPage;
+	private int searchTotal;
+	private List<Object> searchHits = new ArrayList<>();
+	
+	public synchronized void setSearchResults(String query, int page, int total, List<Object> hits) {
+		searchQuery = query;
+		searchPage = page;
+		searchTotal = total;
+		searchHits = hits;
+	}
+	
+	public synchronized String getSearchQuery() {
+		return searchQuery;
+	}
+	
+	public synchronized int getSearchPage() {
+		return searchPage;
+	}
+	
+	public synchronized int getSearchTotal() {
+		return searchTotal;
+	}
+	
+	public synchronized List<Object> getSearchHits() {
+		return searchHits;
+	}
 	public synchronized void setMyUser(User user) {
 		this.myUser = user;
 		this.loggedIn = user != null;
@@ -200,6 +636,7 @@ public class Client {
 		
 		//completely clear existing groups
 		this.myGroups.clear();
+		pendingHistory.clear();
 		
 		//repopulate, but only use incoming groups if they have same or more messages
 		for (Object incoming : groups) {
@@ -265,12 +702,7 @@ public class Client {
 				
 				//show notification if there's a new message from another user
 				if (lastMessage != null && !lastMessage.getSender().equals(currentUser)) {
-					try {
-						Class<?> notifyClass = Class.forName("User.webpages.Notify");
-						java.lang.reflect.Method showMethod = notifyClass.getMethod("showNotification", Message.class);
-						showMethod.invoke(null, lastMessage);
-					} catch (Exception e) {
-					}
+					showNotification(lastMessage);
 				}
 			}
 		}
@@ -354,17 +786,158 @@ public class Client {
 				String sender = lastMessage.getSender();
 				String currentUser = myUser.getUsername();
 				if (!sender.equals(currentUser)) {
-					try {
-						Class<?> notifyClass = Class.forName("User.webpages.Notify");
-						java.lang.reflect.Method showMethod = notifyClass.getMethod("showNotification", Message.class);
-						showMethod.invoke(null, lastMessage);
-					} catch (Exception e) {
-					}
+					showNotification(lastMessage);
+				}
+			}
+		}
+	}
+	
+	//applies a GROUP/APPEND delta: adds the new messages to the conversation with this UID,
+	//or starts the conversation if this client doesn't have it yet
+	//the conversation object is replaced by a copy so the gui never sees its list change underneath it
+	public synchronized Object appendMessages(boolean isGroup, int uid, List<String> participants, List<Message> newMessages) {
+		acknowledge(newMessages);
+		List<Message> merged = new ArrayList<>();
+		int older = 0;
+		Object existing = isGroup ? getGroupById(uid) : getDirectMessageById(uid);
+		if (existing instanceof Group) {
+			merged.addAll(((Group) existing).getMessages());
+			older = ((Group) existing).getOlderMessageCount();
+		} else if (existing instanceof DirectMessage) {
+			merged.addAll(((DirectMessage) existing).getMessage());
+			older = ((DirectMessage) existing).getOlderMessageCount();
+		}
+		older = merge(merged, newMessages, older);
+		Object updated = isGroup ? new Group(uid, participants, merged) : new DirectMessage(uid, participants, merged);
+		if (updated instanceof Group) {
+			((Group) updated).setOlderMessageCount(older);
+		} else {
+			((DirectMessage) updated).setOlderMessageCount(older);
+		}
+		updateGroup(updated);
+		return updated;
+	}
+	
+	//puts new messages into a copy in timestamp order, returns its new older message count
+	//a late arrival from before the oldest message of a copy that hasn't paged everything in belongs to
+	//the part still on the server, it is counted there and comes with the HISTORY page that covers it
+	private static int merge(List<Message> merged, List<Message> newMessages, int older) {
+		for (Message m : newMessages) {
+			if (older > 0 && !merged.isEmpty() && m.getTimestamp().isBefore(merged.get(0).getTimestamp())) {
+				older++;
+			} else {
+				Message.insertInOrder(merged, m); //late arrivals stay in timestamp order
+			}
+		}
+		return older;
+	}
+	
+	//applies a HISTORY/PAGE: puts the older messages in front of the ones this client has
+	//the page holds the messages just before the cursor (before, beforeKey) it was asked for, older is how many
+	//the server still has before it; if the copy's oldest message isn't the cursor any more the page is stale
+	//no notification, these messages are old news
+	public synchronized Object prependMessages(boolean isGroup, int uid, int older, List<Message> olderMessages,
+			String before, long beforeKey) {
+		pendingHistory.remove((isGroup ? "GROUP|" : "DM|") + uid);
+		Object existing = isGroup ? getGroupById(uid) : getDirectMessageById(uid);
+		if (existing == null) {
+			return null;
+		}
+		List<Message> current = existing instanceof Group ? ((Group) existing).getMessages() : ((DirectMessage) existing).getMessage();
+		String oldest = current.isEmpty() ? "" : current.get(0).getTimestamp().toString();
+		if (!oldest.equals(before) || (!current.isEmpty() && Message.seqKey(current, 0) != beforeKey)) {
+			return existing;
+		}
+		List<Message> merged = new ArrayList<>(olderMessages);
+		Object updated;
+		if (existing instanceof Group) {
+			Group g = (Group) existing;
+			merged.addAll(g.getMessages());
+			Group copy = new Group(uid, new ArrayList<>(g.getGroupUsers()), merged);
+			copy.setOlderMessageCount(older);
+			updated = copy;
+		} else {
+			DirectMessage dm = (DirectMessage) existing;
+			merged.addAll(dm.getMessage());
+			DirectMessage copy = new DirectMessage(uid, new ArrayList<>(dm.getGroupUsers()), merged);
+			copy.setOlderMessageCount(older);
+			updated = copy;
+		}
+		myGroups.set(myGroups.indexOf(existing), updated);
+		lastUpdatedGroup = updated;
+		notifyGroupUpdate();
+		return updated;
+	}
+	
+	//applies a GROUP/SYNC after a reconnect: deltas are merged into the copies this client kept,
+	//pages replace them, and conversations the server didn't mention are dropped
+	public synchronized void syncGroups(List<Object> deltas, List<Object> pages) {
+		List<Object> synced = new ArrayList<>();
+		List<Message> missed = new ArrayList<>();
+		for (Object delta : deltas) {
+			Object existing;
+			List<Message> merged = new ArrayList<>();
+			List<Message> newMessages;
+			if (delta instanceof Group) {
+				existing = getGroupById(((Group) delta).getGroupUID());
+				newMessages = ((Group) delta).getMessages();
+			} else {
+				existing = getDirectMessageById(((DirectMessage) delta).getChatUID());
+				newMessages = ((DirectMessage) delta).getMessage();
+			}
+			if (existing == null) {
+				synced.add(delta); //nothing to merge into, shouldn't happen
+				continue;
+			}
+			merged.addAll(existing instanceof Group ? ((Group) existing).getMessages() : ((DirectMessage) existing).getMessage());
+			acknowledge(newMessages);
+			int older = merge(merged, newMessages,
+					existing instanceof Group ? ((Group) existing).getOlderMessageCount() : ((DirectMessage) existing).getOlderMessageCount());
+			if (!newMessages.isEmpty()) {
+				missed.add(newMessages.get(newMessages.size() - 1));
+			}
+			if (delta instanceof Group) {
+				Group copy = new Group(((Group) delta).getGroupUID(), ((Group) delta).getGroupUsers(), merged);
+				copy.setOlderMessageCount(older);
+				synced.add(copy);
+			} else {
+				DirectMessage copy = new DirectMessage(((DirectMessage) delta).getChatUID(), ((DirectMessage) delta).getGroupUsers(), merged);
+				copy.setOlderMessageCount(older);
+				synced.add(copy);
+			}
+		}
+		for (Object page : pages) {
+			acknowledge(page instanceof Group ? ((Group) page).getMessages() : ((DirectMessage) page).getMessage());
+		}
+		synced.addAll(pages);
+		//groups then direct messages, oldest first, like a full login
+		synced.sort(Comparator.comparing((Object c) -> c instanceof DirectMessage)
+				.thenComparingInt(c -> c instanceof Group ? ((Group) c).getGroupUID() : ((DirectMessage) c).getChatUID()));
+		myGroups.clear();
+		myGroups.addAll(synced);
+		pendingHistory.clear();
+		lastUpdatedGroup = myGroups.isEmpty() ? null : myGroups.get(0);
+		notifyGroupUpdate();
+		
+		if (myUser != null) {
+			for (Message m : missed) {
+				if (!m.getSender().equals(myUser.getUsername())) {
+					showNotification(m);
 				}
 			}
 		}
 	}
 	
+	//pops up the GUI notification if the GUI is on the classpath
+	private void showNotification(Message message) {
+		try {
+			Class<?> notifyClass = Class.forName("User.webpages.Notify");
+			java.lang.reflect.Method showMethod = notifyClass.getMethod("showNotification", Message.class);
+			showMethod.invoke(null, message);
+		} catch (Exception e) {
+		}
+	}
+	
 	//gets the last updated group (for GUI notifications)
 	public synchronized Object getLastUpdatedGroup() {
 		return lastUpdatedGroup;
@@ -428,14 +1001,14 @@ public class Client {
 		Thread listener = new Thread(() -> {
 			try {
 				while (true) {
-					Packet packet = (Packet) in.readObject();
+					Packet packet = readPacket();
 					
 					Object result = packetHandler.handlePacket(packet);
 					
 					//if this was a GROUP packet, trigger immediate GUI refresh
 					if (packet.getType().equals(server.Type.GROUP)) {
 						String status = packet.getStatus();
-						if ("ALL".equalsIgnoreCase(status) || "UPDATE".equalsIgnoreCase(status)) {
+						if ("ALL".equalsIgnoreCase(status) || "SYNC".equalsIgnoreCase(status) || "UPDATE".equalsIgnoreCase(status)) {
 							//give a small delay then trigger refresh to ensure GUI is ready
 							try {
 								Thread.sleep(100);
@@ -443,11 +1016,15 @@ public class Client {
 								//ignore
 							}
 							notifyGroupUpdate();
+						} else if ("APPEND".equalsIgnoreCase(status)) {
+							//deltas come one per message, the gui is long up by then, so no delay here
+							notifyGroupUpdate();
 						}
 					}
 				}
-			} catch (java.io.EOFException e) {
-			} catch (java.net.SocketException e) {
+			} catch (IOException e) {
+				//EOF, reset or a broken frame, the connection is gone
+				connectionLost();
 			} catch (Exception e) {
 			}
 		});
@@ -455,11 +1032,60 @@ public class Client {
 		listener.start();
 	}
 	
+	//the listener's connection ended: unless the user logged out (or never logged in), connect again
+	//with growing delays and log back in, the login carries the last seen messages so only missed ones come back
+	//(GROUP/SYNC), after which unconfirmed sends go out again (see resendUnacknowledged)
+	private void connectionLost() {
+		String username;
+		String password;
+		synchronized (this) {
+			username = loginUsername;
+			password = loginPassword;
+		}
+		if (loggedOut || !isLoggedIn() || username == null) {
+			return;
+		}
+		long delay = RECONNECT_DELAY;
+		for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			delay = Math.min(delay * 2, RECONNECT_MAX_DELAY);
+			Client client = reconnect(this);
+			if (client == null) {
+				continue;
+			}
+			try {
+				client.sendLogin(username, password);
+			} catch (IOException e) {
+				return; //dropped again, its own listener takes over from here
+			}
+			Consumer<Client> callback;
+			synchronized (this) {
+				callback = reconnectCallback;
+			}
+			if (callback != null) {
+				try {
+					callback.accept(client);
+				} catch (Exception e) {
+				}
+			}
+			return;
+		}
+	}
+	
 	//gets the current Client instance for GUI access
 	public static Client getInstance() {
 		return instance;
 	}
 	
+	//sets a callback to be invoked with the new Client after a lost connection was replaced
+	public synchronized void setReconnectCallback(Consumer<Client> callback) {
+		this.reconnectCallback = callback;
+	}
+	
 	//sets a callback to be invoked when groups are updated
 	public synchronized void setGroupUpdateCallback(Runnable callback) {
 		this.groupUpdateCallback = callback;
@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.*; //package for multithreading (ExecutorService, ThreadPool, ConcurrentHashMap)
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import server.User;
 import server.Packet;
@@ -16,6 +17,11 @@ public class ClientHandler implements Runnable{
 	private ObjectInputStream in; // read packet frm client
 	private ObjectOutputStream out; //send packet to client
 	
+	//used instead of in/out when the client opened a framed connection
+	private DataInputStream frameIn;
+	private DataOutputStream frameOut;
+	private PacketCodec codec;
+	
 	private User loggedInUser = null; //after login becomes non null
 	
 	//maps for clientsocket clientinput clientoutput
@@ -23,8 +29,12 @@ public class ClientHandler implements Runnable{
 	private Map<String, ObjectInputStream> clientInput = new ConcurrentHashMap<>();
 	private Map<String, ObjectOutputStream> clientOutput = new ConcurrentHashMap<>();
 	
-	//threadpool
-	private static ExecutorService threadPool = Executors.newCachedThreadPool();
+	//outgoing packets, only the writer task touches the output stream so send() never blocks on the socket
+	//a client that lets this many packets pile up is too slow and gets disconnected
+	static final int MAX_QUEUED = 10_000;
+	private final BlockingQueue<Packet> outbound = new LinkedBlockingQueue<>(MAX_QUEUED);
+	private Future<?> writer;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
 	
 	private PacketHandler handler; // each client get their own handler
 	
@@ -40,20 +50,71 @@ public class ClientHandler implements Runnable{
 	@Override
 	public void run() {
 		try{
-			//create stream
-			this.out = new ObjectOutputStream(socket.getOutputStream());
-			this.out.flush();
-			this.in = new ObjectInputStream(socket.getInputStream());
+			//peek first byte: 0xAC is the start of an object stream header,
+			//anything else is the codec id of a framed connection
+			BufferedInputStream rawIn = new BufferedInputStream(socket.getInputStream());
+			rawIn.mark(1);
+			int first = rawIn.read();
+			if (first < 0) {
+				return;
+			}
+			if (first == 0xAC) {
+				rawIn.reset();
+				//create stream
+				this.out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				this.out.flush();
+				this.in = new ObjectInputStream(rawIn);
+			} else {
+				this.codec = PacketCodec.forId(first);
+				if (codec == null) {
+					return; //unknown codec, drop connection
+				}
+				this.frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				this.frameIn = new DataInputStream(rawIn);
+			}
+			writer = server.getExecutor().submit(this::writeLoop);
 			
 			//MAIN LISTEN LOOP
 			while(true) {
-				Packet packet = (Packet) in.readObject();
+				Packet packet = readPacket();
 				
 				//hand packet to packethandler
-				handler.handle(packet,this);
+				dispatch(packet);
 			}
 			
 		}catch(ClassNotFoundException| IOException e) {
+		}finally {
+			closeConnection();
+		}
+	}
+	
+	private Packet readPacket() throws IOException, ClassNotFoundException {
+		if (codec != null) {
+			return PacketFraming.readFrame(frameIn, codec);
+		}
+		return (Packet) in.readObject();
+	}
+	
+	//run a packet that arrived on this connection through the packet handler
+	void dispatch(Packet packet) {
+		handler.handle(packet, this);
+	}
+	
+	//unregister from server and close socket once the connection is gone
+	void closeConnection() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if (writer != null) {
+			writer.cancel(true);
+		}
+		outbound.clear();
+		if (loggedInUser != null) {
+			server.removeClient(loggedInUser, this);
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
 		}
 	}
 	
@@ -62,8 +123,10 @@ public class ClientHandler implements Runnable{
 		loggedInUser = user;
 		
 		clientSockets.put(user.getUsername(), s);
-		clientInput.put(user.getUsername(), in);
-		clientOutput.put(user.getUsername(),out);
+		if (in != null) {
+			clientInput.put(user.getUsername(), in);
+			clientOutput.put(user.getUsername(),out);
+		}
 		
 		System.out.println("Registered Client: " + user.getUsername());
 	}
@@ -86,11 +149,50 @@ public class ClientHandler implements Runnable{
 	}
 	
 	//SEND PACKET TO THIS CLIENT
+	//only queues the packet, the writer task puts it on the wire
 	public void send(Packet packet) {
+		if (closed.get()) {
+			return;
+		}
+		if (!outbound.offer(packet)) {
+			closeConnection(); //slow consumer, drop it instead of buffering without limit
+		}
+	}
+	
+	//packets waiting to be written to this client
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+	
+	//writer task: drain everything queued, flush once per batch
+	private void writeLoop() {
 		try {
+			while (!closed.get()) {
+				Packet packet = outbound.take();
+				do {
+					writePacket(packet);
+				} while ((packet = outbound.poll()) != null);
+				if (codec != null) {
+					frameOut.flush();
+				} else {
+					out.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			//broken stream, closing the socket also ends the listen loop
+			closeConnection();
+		}
+	}
+	
+	private void writePacket(Packet packet) throws IOException {
+		if (codec != null) {
+			PacketFraming.writeFrame(frameOut, codec, packet);
+		} else {
 			out.writeObject(packet);
-			out.flush();
-		}catch(IOException e) {
+			//forget already written objects, otherwise the stream keeps every packet alive
+			//and resends of a changed object arrive as stale back references
+			out.reset();
 		}
 	}
 	
@@ -0,0 +1,233 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//cold tier of the message history: sealed runs of old messages, Deflater compressed, appended to All_Messages.cold
+//  block = [int rawLength][int length][deflated bytes], the raw bytes are the messages back to back:
+//          [long epochSecond][int nano][sender][text][int recipients][recipient...], strings as int length + utf-8
+//          followed by one [long seq] per message (blocks written before seqs existed stop after the messages)
+//          and then one [id] per message, "" for none (blocks written before client ids stop after the seqs)
+//blocks never change once written, a TieredMessageList holds Block references to the ones it owns
+//recently read blocks are kept decoded in a small LRU cache (-Dchat.history.cacheBlocks, default 64)
+public class ColdStore {
+	private final File file;
+	private final ReentrantLock lock = new ReentrantLock(); //appends and the cache
+	private final Map<Long, List<Message>> cache;
+	private FileChannel channel;
+
+	//tier statistics
+	private final AtomicLong blocksWritten = new AtomicLong();
+	private final AtomicLong messagesWritten = new AtomicLong();
+	private final AtomicLong rawBytes = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong blockLoads = new AtomicLong();
+
+	//a sealed run of messages in the file
+	public static final class Block {
+		final long offset;
+		final int length; //compressed bytes after the 8 byte header
+		final int count;
+		final long maxSeq; //highest message seq in the block, so the seq counter survives a restart without reading it
+
+		Block(long offset, int length, int count, long maxSeq) {
+			this.offset = offset;
+			this.length = length;
+			this.count = count;
+			this.maxSeq = maxSeq;
+		}
+	}
+
+	public ColdStore(File file) {
+		this.file = file;
+		int cacheBlocks = Integer.getInteger("chat.history.cacheBlocks", 64);
+		this.cache = new LinkedHashMap<Long, List<Message>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, List<Message>> eldest) {
+				return size() > cacheBlocks;
+			}
+		};
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	//compress and append messages as one block, synced before it returns so a snapshot may point at it
+	public Block write(List<Message> messages) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(messages.size() * 64);
+		DataOutputStream out = new DataOutputStream(raw);
+		for (Message msg : messages) {
+			out.writeLong(msg.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+			out.writeInt(msg.getTimestamp().getNano());
+			writeString(out, msg.getSender());
+			writeString(out, msg.getMessage());
+			out.writeInt(msg.getRecipients().size());
+			for (String r : msg.getRecipients()) {
+				writeString(out, r);
+			}
+		}
+		long maxSeq = 0;
+		for (Message msg : messages) {
+			out.writeLong(msg.getSeq());
+			maxSeq = Math.max(maxSeq, msg.getSeq());
+		}
+		for (Message msg : messages) {
+			writeString(out, msg.getId());
+		}
+		out.flush();
+		byte[] input = raw.toByteArray();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(input);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 3 + 64);
+		byte[] chunk = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			compressed.write(chunk, 0, n);
+		}
+		deflater.end();
+		byte[] body = compressed.toByteArray();
+
+		ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+		buffer.putInt(input.length).putInt(body.length).put(body).flip();
+		lock.lock();
+		try {
+			FileChannel ch = channel();
+			long offset = ch.size();
+			while (buffer.hasRemaining()) {
+				ch.write(buffer, offset + buffer.position());
+			}
+			ch.force(false);
+			blocksWritten.incrementAndGet();
+			messagesWritten.addAndGet(messages.size());
+			rawBytes.addAndGet(input.length);
+			storedBytes.addAndGet(body.length);
+			return new Block(offset, body.length, messages.size(), maxSeq);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//the messages of a block, from the cache or decompressed from disk
+	public List<Message> read(Block block) {
+		lock.lock();
+		try {
+			List<Message> cached = cache.get(block.offset);
+			if (cached != null) {
+				cacheHits.incrementAndGet();
+				return cached;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(8 + block.length);
+			FileChannel ch = channel();
+			while (buffer.hasRemaining()) {
+				if (ch.read(buffer, block.offset + buffer.position()) < 0) {
+					throw new EOFException("Cold block at " + block.offset + " is cut short");
+				}
+			}
+			buffer.flip();
+			byte[] raw = new byte[buffer.getInt()];
+			buffer.getInt();
+			Inflater inflater = new Inflater();
+			inflater.setInput(buffer.array(), 8, block.length);
+			int filled = 0;
+			while (filled < raw.length && !inflater.finished()) {
+				filled += inflater.inflate(raw, filled, raw.length - filled);
+			}
+			inflater.end();
+			List<Message> messages = decode(raw, block.count);
+			cache.put(block.offset, messages);
+			blockLoads.incrementAndGet();
+			return messages;
+		} catch (IOException | DataFormatException e) {
+			throw new UncheckedIOException(new IOException("Can't read cold block at " + block.offset, e));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static List<Message> decode(byte[] raw, int count) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+		List<Message> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			LocalDateTime timestamp = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+			String sender = readString(in);
+			String text = readString(in);
+			int recipientCount = in.readInt();
+			List<String> recipients = new ArrayList<>(recipientCount);
+			for (int r = 0; r < recipientCount; r++) {
+				recipients.add(readString(in));
+			}
+			messages.add(new Message(timestamp, text, sender, recipients));
+		}
+		if (in.available() >= count * 8) {
+			for (Message msg : messages) {
+				msg.setSeq(in.readLong());
+			}
+		}
+		if (in.available() > 0) {
+			for (Message msg : messages) {
+				String id = readString(in);
+				msg.setId(id.isEmpty() ? null : id);
+			}
+		}
+		return Collections.unmodifiableList(messages);
+	}
+
+	//blocks written, messages sealed, raw vs compressed bytes, cache hits and disk loads since startup
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("coldBlocksWritten", blocksWritten.get());
+		stats.put("coldMessagesWritten", messagesWritten.get());
+		stats.put("coldRawBytes", rawBytes.get());
+		stats.put("coldStoredBytes", storedBytes.get());
+		stats.put("coldFileBytes", file.length());
+		stats.put("coldCacheHits", cacheHits.get());
+		stats.put("coldBlockLoads", blockLoads.get());
+		return stats;
+	}
+
+	public void close() {
+		lock.lock();
+		try {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		} catch (IOException e) {
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private FileChannel channel() throws IOException {
+		if (channel == null) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return channel;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
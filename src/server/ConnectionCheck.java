@@ -0,0 +1,313 @@
+package server;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+//in process checks of how the server copes with broken connections, run like LoadTest
+//usage: java server.ConnectionCheck badframe|reconnect [username] [password]
+//  badframe   clients send binary frames that are broken or crafted, each has to be answered or dropped,
+//             then one login per nio event loop has to go through, so a loop that died on a frame shows up
+//             as a login that times out
+//  reconnect  the user's connection goes through a proxy that drops it, while it is down the user sends to Bob
+//             and Bob sends to the user; once the client reconnected by itself both messages have to be
+//             in its copy of the conversation, and the user's on the server exactly once
+//exits with 1 when a check fails
+//run it from the folder holding All_Users.txt / All_Messages.txt
+public class ConnectionCheck {
+	private static final int PORT = 12397;
+	private static final int PROXY_PORT = 12398;
+	private static final int TIMEOUT = 5000; //ms a check waits for the server
+
+	public static void main(String[] args) throws Exception {
+		String check = args.length > 0 ? args[0] : "badframe";
+		String username = args.length > 1 ? args[1] : "Alice";
+		String password = args.length > 2 ? args[2] : "alice123";
+		boolean ok;
+		switch (check) {
+			case "badframe":
+				ok = badFrame(username, password);
+				break;
+			case "reconnect":
+				ok = reconnect(username, password);
+				break;
+			default:
+				System.out.println("unknown check " + check);
+				ok = false;
+		}
+		System.out.println(check + ": " + (ok ? "ok" : "FAILED"));
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean badFrame(String username, String password) throws Exception {
+		Server server = new Server(PORT, TransportMode.NIO, ThreadMode.PLATFORM);
+		Thread serverThread = new Thread(server::startServer, "server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+		boolean ok = true;
+		try {
+			BinaryPacketCodec codec = new BinaryPacketCodec();
+			Map<String, byte[]> frames = new LinkedHashMap<>();
+			frames.put("message id without a string", nullMessageId(codec));
+			frames.put("nanos out of range", badNanos(codec));
+			frames.put("random bytes", new byte[] { 3, (byte) 0xFF, 0x7F, 0x00, 0x55 });
+			frames.put("lists nested 100000 deep", nestedLists());
+			for (Map.Entry<String, byte[]> frame : frames.entrySet()) {
+				try (Socket s = new Socket("localhost", PORT)) {
+					s.setSoTimeout(TIMEOUT);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+					out.writeByte(codec.getId());
+					out.writeInt(frame.getValue().length);
+					out.write(frame.getValue());
+					out.flush();
+					String outcome;
+					try {
+						outcome = s.getInputStream().read() < 0 ? "closed" : "answered";
+					} catch (SocketTimeoutException e) {
+						outcome = null;
+					} catch (IOException e) {
+						outcome = "reset";
+					}
+					System.out.println(frame.getKey() + ": " + (outcome == null ? "no answer" : outcome));
+					ok &= outcome != null;
+				}
+			}
+			//round robin over the loops, so this many logins in a row reach every one of them
+			int loops = Runtime.getRuntime().availableProcessors();
+			int failed = 0;
+			for (int i = 0; i < loops; i++) {
+				if (!login(codec, username, password)) {
+					failed++;
+				}
+			}
+			System.out.println("logins after the bad frames: " + (loops - failed) + " of " + loops);
+			ok &= failed == 0;
+		} finally {
+			server.shutdown();
+		}
+		return ok;
+	}
+
+	private static boolean reconnect(String username, String password) throws Exception {
+		Server server = new Server(PORT, TransportMode.NIO, ThreadMode.PLATFORM);
+		Thread serverThread = new Thread(server::startServer, "server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+		Proxy proxy = new Proxy(PROXY_PORT, PORT);
+		boolean ok = true;
+		try {
+			Client client = Client.connect(new Socket("localhost", PROXY_PORT), "binary");
+			AtomicReference<Client> current = new AtomicReference<>(client);
+			client.setReconnectCallback(current::set);
+			client.startListening(new PacketHandler(client));
+			client.sendLogin(username, password);
+			Client bob = Client.connect(new Socket("localhost", PORT), "binary");
+			bob.startListening(new PacketHandler(bob));
+			bob.sendLogin("Bob", "bob123");
+			if (!waitFor(() -> client.isLoggedIn() && bob.isLoggedIn())) {
+				System.out.println("login failed");
+				return false;
+			}
+
+			proxy.drop();
+			String tag = UUID.randomUUID().toString();
+			String mine = "sent while dropped " + tag;
+			String theirs = "missed while dropped " + tag;
+			try {
+				client.sendMessage(List.of("Bob"), mine);
+			} catch (IOException e) {
+				//the socket is already known to be gone, the send waits for the reconnect
+			}
+			bob.sendMessage(List.of(username), theirs);
+
+			List<String> participants = List.of(username, "Bob");
+			boolean synced = waitFor(() -> current.get() != client
+					&& count(current.get().getGroupByParticipants(participants), theirs) == 1
+					&& count(current.get().getGroupByParticipants(participants), mine) == 1);
+			System.out.println("reconnected: " + (current.get() != client) + ", in sync: " + synced);
+			ok &= synced;
+			server.whenPersisted().get();
+			long stored = server.getAllMessagesByUser(username).stream().filter(m -> mine.equals(m.getMessage())).count();
+			System.out.println("copies of the resent message on the server: " + stored);
+			ok &= stored == 1;
+		} finally {
+			proxy.close();
+			server.shutdown();
+		}
+		return ok;
+	}
+
+	//how many messages of a client's copy of a conversation have this text
+	private static int count(Object conversation, String text) {
+		List<Message> messages;
+		if (conversation instanceof Group) {
+			messages = ((Group) conversation).getMessages();
+		} else if (conversation instanceof DirectMessage) {
+			messages = ((DirectMessage) conversation).getMessage();
+		} else {
+			return 0;
+		}
+		int count = 0;
+		for (Message msg : messages) {
+			if (text.equals(msg.getMessage())) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	//polls until done or a few TIMEOUTs passed, reconnects back off so this is more than one
+	private static boolean waitFor(java.util.function.BooleanSupplier done) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 4L * TIMEOUT;
+		while (!done.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(50);
+		}
+		return true;
+	}
+
+	//forwards connections to the server, drop() cuts all of them like a network failure would
+	private static class Proxy implements Closeable {
+		private final ServerSocket listener;
+		private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+		Proxy(int port, int target) throws IOException {
+			listener = new ServerSocket(port);
+			Thread acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						Socket in = listener.accept();
+						Socket out = new Socket("localhost", target);
+						sockets.add(in);
+						sockets.add(out);
+						pump(in, out);
+						pump(out, in);
+					}
+				} catch (IOException e) {
+					//closed
+				}
+			}, "proxy");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private void pump(Socket from, Socket to) {
+			Thread t = new Thread(() -> {
+				try {
+					from.getInputStream().transferTo(to.getOutputStream());
+				} catch (IOException e) {
+					//dropped
+				}
+				try {
+					from.close();
+					to.close();
+				} catch (IOException e) {
+				}
+			}, "proxy pump");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void drop() throws IOException {
+			synchronized (sockets) {
+				for (Socket s : sockets) {
+					s.close();
+				}
+				sockets.clear();
+			}
+		}
+
+		public void close() throws IOException {
+			listener.close();
+			drop();
+		}
+	}
+
+	//a MESSAGES/REQUEST whose message id is written as a null string, the last thing in the frame
+	private static byte[] nullMessageId(BinaryPacketCodec codec) throws IOException {
+		Message msg = new Message(LocalDateTime.of(2024, 1, 15, 12, 0), "hi", "Alice", List.of("Bob"));
+		msg.setId("x");
+		byte[] frame = codec.encode(new Packet(Type.MESSAGES, "REQUEST", new ArrayList<>(List.of(msg))));
+		//the id "x" is [2]['x'], a null string is a single 0
+		frame = Arrays.copyOf(frame, frame.length - 1);
+		frame[frame.length - 1] = 0;
+		return frame;
+	}
+
+	//a MESSAGES/REQUEST whose timestamp has more than a second of nanos
+	private static byte[] badNanos(BinaryPacketCodec codec) throws IOException {
+		LocalDateTime time = LocalDateTime.of(2024, 1, 15, 12, 0);
+		Message msg = new Message(time, "hi", "Alice", List.of("Bob"));
+		byte[] frame = codec.encode(new Packet(Type.MESSAGES, "REQUEST", new ArrayList<>(List.of(msg))));
+		//timestamps are [zigzag epoch seconds][varint nanos], swap the 0 nanos for 2e9
+		long seconds = time.toEpochSecond(ZoneOffset.UTC);
+		byte[] at = varint((seconds << 1) ^ (seconds >> 63));
+		for (int i = 0; i + at.length < frame.length; i++) {
+			if (Arrays.equals(frame, i, i + at.length, at, 0, at.length) && frame[i + at.length] == 0) {
+				ByteArrayOutputStream patched = new ByteArrayOutputStream();
+				patched.write(frame, 0, i + at.length);
+				patched.write(varint(2_000_000_000L));
+				patched.write(frame, i + at.length + 1, frame.length - i - at.length - 1);
+				return patched.toByteArray();
+			}
+		}
+		throw new IllegalStateException("timestamp not found in frame");
+	}
+
+	//a packet whose content is a list in a list in a list..., 2 bytes per level
+	private static byte[] nestedLists() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(Type.MESSAGES.ordinal());
+		out.write(0); //null status
+		for (int i = 0; i < 100_000; i++) {
+			out.write(5); //list tag
+			out.write(1); //of one element
+		}
+		out.write(0); //null tag
+		return out.toByteArray();
+	}
+
+	private static byte[] varint(long v) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+		return out.toByteArray();
+	}
+
+	//connect and log in, true once the GROUP reply that completes a login arrives in time
+	private static boolean login(PacketCodec codec, String username, String password) {
+		try (Socket s = new Socket("localhost", PORT)) {
+			s.setSoTimeout(TIMEOUT);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			out.writeByte(codec.getId());
+			List<LoginInfo> creds = new ArrayList<>();
+			creds.add(new LoginInfo(username, password));
+			PacketFraming.writeFrame(out, codec, new Packet(Type.LOGIN, "REQUEST", List.of(creds)));
+			out.flush();
+			while (true) {
+				Packet p = PacketFraming.readFrame(in, codec);
+				if (p.getType() == Type.ERROR) {
+					return false;
+				}
+				if (p.getType() == Type.GROUP) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+//All_Conversations.txt, the UID each conversation was given, one "uid|membersKey" line per assignment
+//e.g. "4|GROUP|Alice,Bob,Carl", append only like All_Users.txt
+//a group that gets a new member is written again under its new members key, the last line for a UID wins
+//history on disk is grouped by members key, this file is what keeps the UIDs the same from one run to the next
+public class ConversationFile {
+	private final File file;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<String, String> written = new LinkedHashMap<>(); //"TYPE|uid" -> members key on file
+	private boolean endsWithNewline = true; //false after a torn last line, the next append starts a fresh line
+
+	public ConversationFile(File file) {
+		this.file = file;
+	}
+
+	//members key -> UID, empty if the file is missing
+	public Map<String, Integer> read() {
+		Map<String, Integer> uids = new HashMap<>();
+		if (!file.exists()) {
+			return uids;
+		}
+		lock.lock();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				int bar = line.indexOf('|');
+				int typeBar = bar < 0 ? -1 : line.indexOf('|', bar + 1);
+				if (typeBar < 0) {
+					continue; //torn or blank line
+				}
+				String id;
+				try {
+					id = line.substring(bar + 1, typeBar) + "|" + Integer.parseInt(line.substring(0, bar));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				written.remove(id); //keep the map in order of the latest line
+				written.put(id, line.substring(bar + 1));
+			}
+			endsWithNewline = endsWithNewline();
+		} catch (IOException e) {
+			System.out.println("Failed to read " + file + ": " + e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+		//if two conversations ever claimed the same members, the later line wins
+		for (Map.Entry<String, String> entry : written.entrySet()) {
+			String id = entry.getKey();
+			uids.put(entry.getValue(), Integer.parseInt(id.substring(id.indexOf('|') + 1)));
+		}
+		return uids;
+	}
+
+	//saves that conversation TYPE|uid has these members, nothing to do if that is already on file
+	public void record(String type, int uid, String membersKey) {
+		lock.lock();
+		try {
+			if (membersKey.equals(written.get(type + "|" + uid))) {
+				return;
+			}
+			try (FileOutputStream out = new FileOutputStream(file, true)) {
+				String line = (endsWithNewline ? "" : "\n") + uid + "|" + membersKey + "\n";
+				out.write(line.getBytes(StandardCharsets.UTF_8));
+				out.getFD().sync();
+				endsWithNewline = true;
+				written.put(type + "|" + uid, membersKey);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to save conversation " + type + "|" + uid + ": " + e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() == 0) {
+				return true;
+			}
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		}
+	}
+}
@@ -3,20 +3,23 @@ package server;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 //import User
 //import Message
 
 public class DirectMessage implements Serializable {
    private List<String> groupUsers = new ArrayList<>();
    private List<Message> messages = new ArrayList<>();
-   static private int count = 0;
+   static private final AtomicInteger count = new AtomicInteger(); //next UID, loaded conversations move it past theirs
    private int chatUID;
    private boolean newMessage;
+   private transient long lastSeq; //server side: seq of the newest accepted message
+   private int olderMessages; //messages before the first one in this copy still on the server, 0 when it has the full history
    
    //constructor
    
    public DirectMessage(String sender, String recipient, String initialMessage, LocalDateTime timestamp) {
-	   this.chatUID = count++;
+	   this.chatUID = count.getAndIncrement();
 	   
 	   //add the users
 	   groupUsers.add(sender);
@@ -32,7 +35,7 @@ public class DirectMessage implements Serializable {
    
    //contructor for loading existing chat
    public DirectMessage(List<String> groupUsers, List<Message> messages) {
-	   this.chatUID = count++;
+	   this.chatUID = count.getAndIncrement();
 	   
 	   this.groupUsers = groupUsers;
 	   this.messages = messages;
@@ -41,6 +44,30 @@ public class DirectMessage implements Serializable {
 	   this.newMessage = false;
    }
    
+   //constructor for a copy of an existing chat (or one decoded off the wire), keeps its UID
+   DirectMessage(int chatUID, List<String> groupUsers, List<Message> messages) {
+	   this.chatUID = chatUID;
+	   this.groupUsers = groupUsers;
+	   this.messages = messages;
+   }
+   
+   //copy with the same UID, lists are copied so it can be serialized while the server keeps changing the original
+   DirectMessage snapshot() {
+	   DirectMessage copy = new DirectMessage(chatUID, new ArrayList<>(groupUsers), new ArrayList<>(messages));
+	   copy.newMessage = newMessage;
+	   return copy;
+   }
+   
+   //copy with only the newest messages (at most recent), the rest are left on the server to be paged in
+   DirectMessage snapshot(int recent) {
+	   int size = messages.size();
+	   int from = Math.max(0, size - recent);
+	   DirectMessage copy = new DirectMessage(chatUID, new ArrayList<>(groupUsers), new ArrayList<>(messages.subList(from, size)));
+	   copy.newMessage = newMessage;
+	   copy.olderMessages = from;
+	   return copy;
+   }
+   
    public void sendNotifcation() {
 	   newMessage = true;
 	   //...
@@ -66,5 +93,32 @@ public class DirectMessage implements Serializable {
 	   return this.messages;
    }
    
+   //how many older messages the server has that this copy doesn't, the next HISTORY request asks for the ones before its oldest
+   public int getOlderMessageCount() {
+	   return olderMessages;
+   }
+   
+   void setOlderMessageCount(int olderMessages) {
+	   this.olderMessages = olderMessages;
+   }
+   
+   //loaded conversations keep the UID saved for them, new ones are numbered after it
+   static void reserveUid(int uid) {
+	   count.accumulateAndGet(uid + 1, Math::max);
+   }
+   
+   //server side, with the conversation lock held: seq for the next accepted message
+   long nextSeq() {
+	   return ++lastSeq;
+   }
+   
+   long getLastSeq() {
+	   return lastSeq;
+   }
+   
+   void setLastSeq(long lastSeq) {
+	   this.lastSeq = lastSeq;
+   }
+   
    
 }
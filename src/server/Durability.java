@@ -0,0 +1,20 @@
+package server;
+
+//when an accepted message counts as saved, -Dchat.durability
+public enum Durability {
+	ASYNC, //written by the journal thread in the background, no fsync, senders are acked right away
+	BATCH, //group commit: one write and one fsync per journal batch, senders are acked once their batch is forced
+	SYNC; //one fsync per message, senders are acked once theirs is forced
+
+	public static Durability fromString(String s) {
+		if (s != null) {
+			if (s.trim().equalsIgnoreCase("batch")) {
+				return BATCH;
+			}
+			if (s.trim().equalsIgnoreCase("sync")) {
+				return SYNC;
+			}
+		}
+		return ASYNC;
+	}
+}
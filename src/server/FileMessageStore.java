@@ -0,0 +1,370 @@
+package server;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+//the text file backend: All_Users.txt plus All_Messages.txt written as an append only journal
+//All_Conversations.txt keeps conversation UIDs stable across restarts
+//All_Messages.snapshot is a periodic binary image, boot loads it and only replays the journal written after it
+//  -Dchat.durability              async (default), batch or sync, see Durability
+//  -Dchat.journal.windowMillis    linger so more messages join a batch
+//  -Dchat.snapshot.seconds        snapshot interval, default 300, 0 turns periodic snapshots off
+//  -Dchat.snapshot.compact=true   drop the journal records a snapshot covers
+//  -Dchat.compact.hours           full rewrite of both files every N hours, default 24, 0 turns it off
+//
+//-Dchat.tiering=true keeps only recent history on the heap, older messages are sealed into compressed
+//ColdStore blocks (All_Messages.cold) that snapshots point at, so they stay off the heap across restarts too
+//  -Dchat.history.hotMinutes      messages older than this are sealed, default 60
+//  -Dchat.history.keepHot         never seal a conversation's newest N messages, default 50
+//  -Dchat.history.hotMessages     heap budget, total hot messages before more is sealed, default 200000
+//  -Dchat.tiering.seconds         how often the sealer runs, default 30
+public class FileMessageStore extends MemoryMessageStore {
+	private final File messagesFile;
+	private final File snapshotFile;
+	private final UserFile userFile;
+	private final ConversationFile conversationFile;
+	private final ReentrantLock conversationLock; //the server's, guards the lists we copy for snapshots
+	private final ReentrantLock snapshotLock = new ReentrantLock(); //one snapshot write at a time
+	private Snapshot bootSnapshot; //only until loadConversations is done
+	private MessageJournal journal;
+	private ScheduledExecutorService snapshotTimer; //snapshots, sealing and compaction, one thread so they never overlap
+	private final ColdStore cold;
+	private final boolean tiering = Boolean.getBoolean("chat.tiering");
+	private final long hotMinutes = Long.getLong("chat.history.hotMinutes", 60);
+	private final int keepHot = Integer.getInteger("chat.history.keepHot", 50);
+	private final int hotBudget = Integer.getInteger("chat.history.hotMessages", 200_000);
+	private static final int BLOCK_MESSAGES = 4096; //upper bound of what one cold read decodes
+	private final Collection<User> users = new ConcurrentLinkedQueue<>(); //every user, for snapshots
+	private boolean modified; //messages arrived since the last snapshot, guarded by conversationLock
+
+	public FileMessageStore(File messagesFile, File usersFile, ReentrantLock conversationLock) {
+		this.messagesFile = messagesFile;
+		this.snapshotFile = new File(messagesFile.getAbsoluteFile().getParentFile(), "All_Messages.snapshot");
+		this.userFile = new UserFile(usersFile);
+		this.conversationFile = new ConversationFile(new File(messagesFile.getAbsoluteFile().getParentFile(), "All_Conversations.txt"));
+		this.conversationLock = conversationLock;
+		this.cold = new ColdStore(new File(messagesFile.getAbsoluteFile().getParentFile(), "All_Messages.cold"));
+		this.bootSnapshot = readSnapshot();
+	}
+
+	//users come from the snapshot unless All_Users.txt changed after it was taken
+	@Override
+	public Collection<User> loadUsers() {
+		File file = userFile.getFile();
+		Snapshot snapshot = bootSnapshot;
+		if (snapshot != null && snapshot.usersModified == file.lastModified() && snapshot.usersLength == file.length()) {
+			users.addAll(snapshot.users);
+		} else {
+			users.addAll(userFile.read());
+		}
+		return new ArrayList<>(users);
+	}
+
+	@Override
+	public void userAdded(User user) {
+		users.add(user);
+		userFile.append(user);
+	}
+
+	@Override
+	public Map<String, Integer> loadConversationIds() {
+		return conversationFile.read();
+	}
+
+	@Override
+	public void conversationAdded(String type, int uid, String membersKey, List<Message> messages) {
+		super.conversationAdded(type, uid, membersKey, messages);
+		conversationFile.record(type, uid, membersKey);
+	}
+
+	@Override
+	public void membersChanged(String type, int uid, String membersKey) {
+		super.membersChanged(type, uid, membersKey);
+		conversationFile.record(type, uid, membersKey);
+	}
+
+	//snapshot conversations plus the journal records written after it, or the whole file without a usable snapshot
+	//the journal opens afterwards, appends go after everything that was read
+	@Override
+	public Map<String, List<Message>> loadConversations() {
+		Snapshot snapshot = bootSnapshot;
+		bootSnapshot = null;
+		Map<String, List<Message>> conversations = snapshot != null ? snapshot.conversations : new HashMap<>();
+		long offset = snapshot != null ? snapshot.journalOffset : 0;
+		MessageFileLoader.load(messagesFile, offset, conversations);
+		if (tiering) {
+			for (Map.Entry<String, List<Message>> entry : conversations.entrySet()) {
+				if (!(entry.getValue() instanceof TieredMessageList)) {
+					entry.setValue(new TieredMessageList(cold, Collections.emptyList(), entry.getValue()));
+				}
+			}
+		}
+		modified = offset < messagesFile.length(); //snapshot is behind the journal, take a new one
+
+		journal = new MessageJournal(messagesFile, Durability.fromString(System.getProperty("chat.durability")),
+				Long.getLong("chat.journal.windowMillis", 0));
+		System.out.println("Durability: " + journal.getDurability());
+		scheduleSnapshots();
+		return conversations;
+	}
+
+	@Override
+	public List<Message> newMessageList(String membersKey) {
+		return tiering ? new TieredMessageList(cold) : new ArrayList<>();
+	}
+
+	@Override
+	public void messageAdded(String type, int uid, Message msg) {
+		modified = true;
+		//persist just this message, the journal thread appends it to the file
+		journal.append(type, uid, msg);
+	}
+
+	@Override
+	public CompletableFuture<Void> whenPersisted() {
+		return journal.whenDurable();
+	}
+
+	//full rewrite of the message file, one record per message grouped by conversation, and of the user file
+	//runs on the snapshot thread every chat.compact.hours
+	//like a snapshot only the list copies happen under conversationLock, cold blocks stay blocks until
+	//the encoding out here reads them back, and what arrives meanwhile is carried over from the old file
+	public void compact() {
+		snapshotLock.lock();
+		try {
+			userFile.compact(new ArrayList<>(users));
+			Map<String, List<Message>> copies = new LinkedHashMap<>();
+			CompletableFuture<long[]> position;
+			conversationLock.lock();
+			try {
+				for (Map.Entry<String, List<Message>> entry : histories.entrySet()) {
+					List<Message> messages = entry.getValue();
+					copies.put(entry.getKey(),
+							messages instanceof TieredMessageList ? ((TieredMessageList) messages).copy() : new ArrayList<>(messages));
+				}
+				//queued under the lock, so the records after this position are exactly the messages added after the copy
+				position = journal.checkpoint();
+				modified = true; //the old snapshot is for the old file, the next one has to be taken again
+			} finally {
+				conversationLock.unlock();
+			}
+			List<String> records = new ArrayList<>();
+			for (Map.Entry<String, List<Message>> entry : copies.entrySet()) {
+				String key = entry.getKey();
+				int bar = key.indexOf('|');
+				String type = key.substring(0, bar);
+				int uid = Integer.parseInt(key.substring(bar + 1));
+				for (Message msg : entry.getValue()) {
+					records.add(MessageRecordCodec.encode(type, uid, msg));
+				}
+			}
+			journal.rewrite(records, position.get()).get();
+		} catch (InterruptedException | ExecutionException e) {
+			System.out.println("Message file compaction failed: " + e.getMessage());
+		} finally {
+			snapshotLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (snapshotTimer != null) {
+			snapshotTimer.shutdownNow();
+		}
+		if (journal != null) {
+			takeSnapshot(); //next boot has nothing to replay
+			journal.close(); //flush queued messages
+		}
+		cold.close();
+	}
+
+	//the snapshot that belongs to the message file on disk, .next is left over when compaction was interrupted
+	private Snapshot readSnapshot() {
+		long generation = MessageJournal.readGeneration(messagesFile);
+		for (File candidate : new File[] { snapshotFile, new File(snapshotFile.getPath() + ".next") }) {
+			Snapshot snapshot = Snapshot.read(candidate, generation, cold);
+			if (snapshot != null && snapshot.journalOffset <= messagesFile.length()) {
+				return snapshot;
+			}
+		}
+		return null;
+	}
+
+	private void scheduleSnapshots() {
+		long seconds = Long.getLong("chat.snapshot.seconds", 300);
+		long tieringSeconds = Long.getLong("chat.tiering.seconds", 30);
+		long compactHours = Long.getLong("chat.compact.hours", 24);
+		if (seconds <= 0 && !(tiering && tieringSeconds > 0) && compactHours <= 0) {
+			return;
+		}
+		snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		if (seconds > 0) {
+			snapshotTimer.scheduleWithFixedDelay(this::takeSnapshot, seconds, seconds, TimeUnit.SECONDS);
+		}
+		if (tiering && tieringSeconds > 0) {
+			snapshotTimer.scheduleWithFixedDelay(this::sealColdMessages, tieringSeconds, tieringSeconds, TimeUnit.SECONDS);
+		}
+		if (compactHours > 0) {
+			snapshotTimer.scheduleWithFixedDelay(this::compact, compactHours, compactHours, TimeUnit.HOURS);
+		}
+	}
+
+	//moves messages older than hotMinutes into the cold tier, then more from the biggest conversations
+	//until the hot tier fits the heap budget; compression and disk io happen outside conversationLock
+	public void sealColdMessages() {
+		if (!tiering) {
+			return;
+		}
+		LocalDateTime cutoff = LocalDateTime.now().minusMinutes(hotMinutes);
+		List<TieredMessageList> lists = new ArrayList<>();
+		for (List<Message> messages : histories.values()) {
+			if (messages instanceof TieredMessageList) {
+				lists.add((TieredMessageList) messages);
+			}
+		}
+		long hotTotal = 0;
+		for (TieredMessageList list : lists) {
+			int old = 0;
+			conversationLock.lock();
+			try {
+				int limit = list.hotSize() - keepHot;
+				while (old < limit && list.hotMessage(old).getTimestamp().isBefore(cutoff)) {
+					old++;
+				}
+			} finally {
+				conversationLock.unlock();
+			}
+			sealPrefix(list, old);
+			hotTotal += list.hotSize();
+		}
+		if (hotTotal > hotBudget) {
+			lists.sort(Comparator.comparingInt(TieredMessageList::hotSize).reversed());
+			for (TieredMessageList list : lists) {
+				if (hotTotal <= hotBudget) {
+					break;
+				}
+				int count = (int) Math.min(list.hotSize() - keepHot, hotTotal - hotBudget);
+				hotTotal -= sealPrefix(list, count);
+			}
+		}
+	}
+
+	//seals up to count of the list's oldest hot messages, returns how many were sealed
+	private int sealPrefix(TieredMessageList list, int count) {
+		int sealed = 0;
+		while (count - sealed > 0) {
+			List<Message> prefix;
+			conversationLock.lock();
+			try {
+				prefix = list.hotPrefix(Math.min(count - sealed, BLOCK_MESSAGES));
+			} finally {
+				conversationLock.unlock();
+			}
+			ColdStore.Block block;
+			try {
+				block = cold.write(prefix);
+			} catch (IOException e) {
+				System.out.println("Can't write cold block: " + e.getMessage());
+				break;
+			}
+			conversationLock.lock();
+			try {
+				if (!list.seal(prefix, block)) {
+					break; //a late message landed in the prefix, try again next round
+				}
+				modified = true; //the next snapshot references the block instead of the messages
+			} finally {
+				conversationLock.unlock();
+			}
+			sealed += prefix.size();
+		}
+		return sealed;
+	}
+
+	//hot/cold message counts, the heap budget and the cold store's counters
+	@Override
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		long hot = 0;
+		long coldMessages = 0;
+		conversationLock.lock();
+		try {
+			for (List<Message> messages : histories.values()) {
+				if (messages instanceof TieredMessageList) {
+					hot += ((TieredMessageList) messages).hotSize();
+					coldMessages += ((TieredMessageList) messages).coldSize();
+				} else {
+					hot += messages.size();
+				}
+			}
+		} finally {
+			conversationLock.unlock();
+		}
+		stats.put("conversations", (long) histories.size());
+		stats.put("hotMessages", hot);
+		stats.put("coldMessages", coldMessages);
+		stats.put("hotBudget", tiering ? (long) hotBudget : -1L);
+		stats.putAll(cold.getStats());
+		return stats;
+	}
+
+	//writes All_Messages.snapshot if messages arrived since the last one
+	//only the list copies happen under conversationLock, encoding and disk io run here on the snapshot thread
+	public void takeSnapshot() {
+		snapshotLock.lock();
+		try {
+			Snapshot snapshot = new Snapshot();
+			File file = userFile.getFile();
+			snapshot.usersModified = file.lastModified(); //stamp before the copy, a later save just means users get re-read
+			snapshot.usersLength = file.length();
+			snapshot.users.addAll(users);
+			CompletableFuture<long[]> position;
+			conversationLock.lock();
+			try {
+				if (!modified) {
+					return;
+				}
+				modified = false;
+				for (Map.Entry<String, List<Message>> entry : histories.entrySet()) {
+					List<Message> messages = entry.getValue();
+					snapshot.conversations.put(membersKeys.get(entry.getKey()),
+							messages instanceof TieredMessageList ? ((TieredMessageList) messages).copy() : new ArrayList<>(messages));
+				}
+				//queued under the lock, so the position covers exactly the records of the copied messages
+				position = journal.checkpoint();
+			} finally {
+				conversationLock.unlock();
+			}
+			try {
+				long[] mark = position.get();
+				snapshot.generation = mark[0];
+				snapshot.journalOffset = mark[1];
+				snapshot.write(snapshotFile);
+				if (Boolean.getBoolean("chat.snapshot.compact")) {
+					journal.compact(snapshot, snapshotFile).get();
+				}
+			} catch (IOException | InterruptedException | ExecutionException e) {
+				conversationLock.lock();
+				try {
+					modified = true; //try again next time
+				} finally {
+					conversationLock.unlock();
+				}
+			}
+		} finally {
+			snapshotLock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "file " + messagesFile;
+	}
+}
@@ -3,6 +3,8 @@ package server;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 //import Message
 //import User
 
@@ -10,13 +12,16 @@ public class Group implements Serializable {
 	private int numUsers;
 	private List<String> groupUsers = new ArrayList<>();
 	private List<Message> messages = new ArrayList<>();
-	static private int count = 0;
+	static private final AtomicInteger count = new AtomicInteger(); //next UID, loaded conversations move it past theirs
 	private int groupUID;
 	private boolean newMessage;
+	private transient long lastSeq; //server side: seq of the newest accepted message
+	private int olderMessages; //messages before the first one in this copy still on the server, 0 when it has the full history
+	private transient BiConsumer<Object, String> memberListener;
 	
 	//constructor for loading existing
 	public Group(List<String> groupUsers, List<Message> messages) {
-		this.groupUID = count++;
+		this.groupUID = count.getAndIncrement();
 		
 		this.groupUsers = groupUsers;
 		this.messages = messages;
@@ -24,10 +29,35 @@ public class Group implements Serializable {
 		this.newMessage = false;
 	}
 	
+	//constructor for a copy of an existing group (or one decoded off the wire), keeps its UID
+	Group(int groupUID, List<String> groupUsers, List<Message> messages) {
+		this.groupUID = groupUID;
+		this.groupUsers = groupUsers;
+		this.messages = messages;
+		this.numUsers = groupUsers.size();
+	}
+	
+	//copy with the same UID, lists are copied so it can be serialized while the server keeps changing the original
+	Group snapshot() {
+		Group copy = new Group(groupUID, new ArrayList<>(groupUsers), new ArrayList<>(messages));
+		copy.newMessage = newMessage;
+		return copy;
+	}
+	
+	//copy with only the newest messages (at most recent), the rest are left on the server to be paged in
+	Group snapshot(int recent) {
+		int size = messages.size();
+		int from = Math.max(0, size - recent);
+		Group copy = new Group(groupUID, new ArrayList<>(groupUsers), new ArrayList<>(messages.subList(from, size)));
+		copy.newMessage = newMessage;
+		copy.olderMessages = from;
+		return copy;
+	}
+	
 	//constructor new group , sender and recip and inital message
 	
 	public Group(String sender, List<String> recipients, String initialMessage, LocalDateTime timestamp) {
-		this.groupUID = count++;
+		this.groupUID = count.getAndIncrement();
 		
 		//add sender
 		groupUsers.add(sender);
@@ -50,11 +80,20 @@ public class Group implements Serializable {
 	public void addToGroup(String username) {
 		groupUsers.add(username);
 		numUsers++;
+		if (memberListener != null) {
+			memberListener.accept(this, username);
+		}
 	}
 	//if add multiple at once
 	public void addMultipleToGroup(List<String> usernames) {
-		groupUsers.addAll(usernames); //add all adds entire list to the list
-		numUsers =+ usernames.size();
+		for (String username : usernames) {
+			addToGroup(username);
+		}
+	}
+	
+	//server side only: told about members added after creation so the participant index stays current
+	void setMemberListener(BiConsumer<Object, String> memberListener) {
+		this.memberListener = memberListener;
 	}
 	
 	public void sendNotification() {
@@ -80,4 +119,31 @@ public class Group implements Serializable {
 		return groupUID;
 	}
 	
+	//how many older messages the server has that this copy doesn't, the next HISTORY request asks for the ones before its oldest
+	public int getOlderMessageCount() {
+		return olderMessages;
+	}
+	
+	void setOlderMessageCount(int olderMessages) {
+		this.olderMessages = olderMessages;
+	}
+	
+	//loaded conversations keep the UID saved for them, new ones are numbered after it
+	static void reserveUid(int uid) {
+		count.accumulateAndGet(uid + 1, Math::max);
+	}
+	
+	//server side, with the conversation lock held: seq for the next accepted message
+	long nextSeq() {
+		return ++lastSeq;
+	}
+	
+	long getLastSeq() {
+		return lastSeq;
+	}
+	
+	void setLastSeq(long lastSeq) {
+		this.lastSeq = lastSeq;
+	}
+	
 }
@@ -0,0 +1,168 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+//in process load test for comparing server modes
+//opens a pile of idle connections, then runs a login storm and reports os thread counts and login latency
+//usage: java server.LoadTest [transport] [threads] [idleConnections] [logins] [username] [password]
+//       java server.LoadTest compare [idleConnections] [logins] [username] [password]
+//compare runs the blocking transport on platform threads and then on virtual threads (java 21+) and prints both
+//add -Dchat.wire=binary to use the binary codec instead of java serialization
+//run it from the folder holding All_Users.txt / All_Messages.txt
+public class LoadTest {
+	private static final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equalsIgnoreCase("compare")) {
+			int idle = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+			int logins = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+			String username = args.length > 3 ? args[3] : "Alice";
+			String password = args.length > 4 ? args[4] : "alice123";
+			Result platform = run(TransportMode.BLOCKING, ThreadMode.PLATFORM, idle, logins, username, password, 12399);
+			platform.print();
+			if (!ThreadMode.VIRTUAL.isSupported()) {
+				System.out.println("virtual threads need Java 21+ (running " + System.getProperty("java.version") + "), platform run only");
+				System.exit(0);
+			}
+			Result virtual = run(TransportMode.BLOCKING, ThreadMode.VIRTUAL, idle, logins, username, password, 12398);
+			virtual.print();
+			System.out.println("platform -> virtual: os threads with idle clients " + platform.idleThreads + " -> " + virtual.idleThreads
+					+ ", peak " + platform.peakThreads + " -> " + virtual.peakThreads
+					+ ", login p99 ms " + millis(platform.p99) + " -> " + millis(virtual.p99));
+			System.exit(0);
+		}
+
+		TransportMode transport = TransportMode.fromString(args.length > 0 ? args[0] : "blocking");
+		ThreadMode threads = ThreadMode.fromString(args.length > 1 ? args[1] : "platform");
+		int idle = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		int logins = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		String username = args.length > 4 ? args[4] : "Alice";
+		String password = args.length > 5 ? args[5] : "alice123";
+		run(transport, threads, idle, logins, username, password, 12399).print();
+		System.exit(0);
+	}
+
+	//one mode's numbers
+	private static final class Result {
+		String mode;
+		int baseThreads;
+		int idle;
+		int idleThreads;
+		int peakThreads;
+		int logins;
+		int failed;
+		long p50;
+		long p99;
+		long max;
+
+		void print() {
+			System.out.println("mode: " + mode);
+			System.out.println("os threads: base " + baseThreads + ", with " + idle + " idle clients " + idleThreads + ", peak " + peakThreads);
+			System.out.println("logins: " + (logins - failed) + " ok, " + failed + " failed");
+			if (logins > failed) {
+				System.out.println("login latency ms: p50 " + millis(p50) + ", p99 " + millis(p99) + ", max " + millis(max));
+			}
+		}
+	}
+
+	//starts a server in this process, loads it and shuts it down again
+	private static Result run(TransportMode transport, ThreadMode threads, int idle, int logins, String username, String password, int port) throws Exception {
+		Result result = new Result();
+		result.mode = transport + "/" + threads;
+		result.idle = idle;
+		result.logins = logins;
+		Server server = new Server(port, transport, threads);
+		Thread serverThread = new Thread(server::startServer, "server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+		mx.resetPeakThreadCount();
+		result.baseThreads = mx.getThreadCount();
+
+		//idle clients, they only say hello and then sit there
+		List<Socket> idleSockets = new ArrayList<>();
+		for (int i = 0; i < idle; i++) {
+			Socket s = new Socket("localhost", port);
+			s.getOutputStream().write(newCodec().getId());
+			s.getOutputStream().flush();
+			idleSockets.add(s);
+		}
+		Thread.sleep(1000);
+		result.idleThreads = mx.getThreadCount();
+
+		//login storm from 32 client threads, each login is a fresh connection
+		ExecutorService clients = Executors.newFixedThreadPool(32);
+		List<Future<Long>> results = new ArrayList<>();
+		for (int i = 0; i < logins; i++) {
+			results.add(clients.submit(() -> timeLogin(port, username, password)));
+		}
+		long[] latencies = new long[logins];
+		for (int i = 0; i < logins; i++) {
+			try {
+				latencies[i] = results.get(i).get();
+			} catch (ExecutionException e) {
+				if (result.failed == 0) {
+					e.getCause().printStackTrace();
+				}
+				latencies[i] = Long.MAX_VALUE;
+				result.failed++;
+			}
+		}
+		result.peakThreads = mx.getPeakThreadCount();
+		clients.shutdownNow();
+		Arrays.sort(latencies);
+		int ok = logins - result.failed;
+		if (ok > 0) {
+			result.p50 = latencies[ok / 2];
+			result.p99 = latencies[Math.min(ok - 1, ok * 99 / 100)];
+			result.max = latencies[ok - 1];
+		}
+
+		for (Socket s : idleSockets) {
+			s.close();
+		}
+		server.shutdown();
+		return result;
+	}
+
+	//connect, log in and wait for the GROUP/ALL reply that completes a login
+	private static long timeLogin(int port, String username, String password) throws IOException {
+		long start = System.nanoTime();
+		try (Socket s = new Socket("localhost", port)) {
+			PacketCodec codec = newCodec();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			out.writeByte(codec.getId());
+			List<LoginInfo> creds = new ArrayList<>();
+			creds.add(new LoginInfo(username, password));
+			PacketFraming.writeFrame(out, codec, new Packet(Type.LOGIN, "REQUEST", List.of(creds)));
+			out.flush();
+			while (true) {
+				Packet p = PacketFraming.readFrame(in, codec);
+				if (p.getType() == Type.ERROR) {
+					throw new IOException("login failed");
+				}
+				if (p.getType() == Type.GROUP) {
+					return System.nanoTime() - start;
+				}
+			}
+		}
+	}
+
+	//-Dchat.wire=binary switches the test clients to the binary codec
+	private static PacketCodec newCodec() {
+		if ("binary".equalsIgnoreCase(System.getProperty("chat.wire"))) {
+			return new BinaryPacketCodec();
+		}
+		return new SerializedPacketCodec();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f", nanos / 1_000_000.0);
+	}
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+//load time of MessageFileLoader against file size and core count
+//writes synthetic All_Messages.txt files to a temp folder, loads each one with 1, 2, 4 ... cores and prints the best of a few runs
+//usage: java server.LoaderBenchmark [records,records,...] [runs] [cores,cores,...]
+public class LoaderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "100000,500000,1000000,2000000").split(",");
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int cores = Runtime.getRuntime().availableProcessors();
+		List<Integer> parallelism = new ArrayList<>();
+		if (args.length > 2) {
+			for (String p : args[2].split(",")) {
+				parallelism.add(Integer.parseInt(p.trim()));
+			}
+		} else {
+			for (int p = 1; p < cores; p *= 2) {
+				parallelism.add(p);
+			}
+			parallelism.add(cores);
+		}
+
+		File dir = java.nio.file.Files.createTempDirectory("loader-bench").toFile();
+		System.out.printf("%10s %8s %6s %10s %12s%n", "records", "MB", "cores", "ms", "records/s");
+		for (String size : sizes) {
+			int records = Integer.parseInt(size.trim());
+			File file = new File(dir, "All_Messages_" + records + ".txt");
+			writeFile(file, records);
+			for (int p : parallelism) {
+				ForkJoinPool pool = new ForkJoinPool(p);
+				long best = Long.MAX_VALUE;
+				int loaded = 0;
+				for (int r = 0; r < runs; r++) {
+					long start = System.nanoTime();
+					Map<String, List<Message>> result = MessageFileLoader.load(file, 0, new HashMap<>(), pool);
+					best = Math.min(best, System.nanoTime() - start);
+					loaded = 0;
+					for (List<Message> messages : result.values()) {
+						loaded += messages.size();
+					}
+				}
+				pool.shutdown();
+				if (loaded != records) {
+					System.out.println("expected " + records + " messages, loaded " + loaded);
+				}
+				System.out.printf("%10d %8.1f %6d %10.1f %12.0f%n", records, file.length() / 1e6, p, best / 1e6, records / (best / 1e9));
+			}
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	//records spread over 200 users and a few hundred conversations, timestamps mostly increasing like a real journal
+	private static void writeFile(File file, int records) throws IOException {
+		Random random = new Random(42);
+		LocalDateTime time = LocalDateTime.of(2025, 1, 1, 0, 0);
+		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+			for (int i = 0; i < records; i++) {
+				time = time.plusNanos(random.nextInt(2_000_000_000));
+				String sender = "user" + random.nextInt(200);
+				List<String> recipients = new ArrayList<>();
+				int count = random.nextInt(4) == 0 ? 2 + random.nextInt(3) : 1;
+				for (int r = 0; r < count; r++) {
+					recipients.add("user" + random.nextInt(200));
+				}
+				Message msg = new Message(time, "message number " + i + " with some text in it", sender, recipients);
+				bw.write(MessageRecordCodec.encode(count == 1 ? "DM" : "GROUP", i % 500, msg));
+				bw.newLine();
+			}
+		}
+	}
+}
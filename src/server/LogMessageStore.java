@@ -0,0 +1,96 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+//log structured backend: history in memory mapped SegmentStore files, users in All_Users.txt
+//startup only reads the segment index and every conversation list reads its messages from disk
+//reads go through those lists, which keep late arrivals in timestamp order on top of the append only segments
+//All_Messages.txt is imported the first time the store is empty
+//segments are append only, there is no compaction, and they are synced on close
+public class LogMessageStore extends MemoryMessageStore {
+	private final File dir;
+	private final SegmentStore segmentStore;
+	private final UserFile userFile;
+	private final ConversationFile conversationFile; //UIDs by segment key, conversations.txt in the store folder
+
+	public LogMessageStore(File dir, File importFile, File usersFile) throws IOException {
+		this.dir = dir;
+		this.segmentStore = new SegmentStore(dir);
+		this.userFile = new UserFile(usersFile);
+		this.conversationFile = new ConversationFile(new File(dir, "conversations.txt"));
+		if (segmentStore.isEmpty()) {
+			for (Map.Entry<String, List<Message>> entry : MessageFileLoader.load(importFile, 0, new HashMap<>()).entrySet()) {
+				for (Message msg : entry.getValue()) {
+					segmentStore.append(entry.getKey(), msg);
+				}
+			}
+		}
+	}
+
+	@Override
+	public Collection<User> loadUsers() {
+		return userFile.read();
+	}
+
+	@Override
+	public void userAdded(User user) {
+		userFile.append(user);
+	}
+
+	@Override
+	public Map<String, Integer> loadConversationIds() {
+		return conversationFile.read();
+	}
+
+	@Override
+	public Map<String, List<Message>> loadConversations() {
+		Map<String, List<Message>> conversations = new HashMap<>();
+		for (String key : segmentStore.keys()) {
+			conversations.put(key, new StoredMessageList(segmentStore, key));
+		}
+		return conversations;
+	}
+
+	//adding to the list writes the record, so messageAdded has nothing left to do
+	@Override
+	public List<Message> newMessageList(String membersKey) {
+		return new StoredMessageList(segmentStore, membersKey);
+	}
+
+	@Override
+	public void conversationAdded(String type, int uid, String membersKey, List<Message> messages) {
+		super.conversationAdded(type, uid, membersKey, messages);
+		conversationFile.record(type, uid, membersKey);
+	}
+
+	//records stay under the key they were written with, the list and its saved UID keep using it
+	@Override
+	public void membersChanged(String type, int uid, String membersKey) {
+	}
+
+	//everything lives in the mapped segments, nothing is hot
+	@Override
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		long messages = 0;
+		for (String key : segmentStore.keys()) {
+			messages += segmentStore.count(key);
+		}
+		stats.put("conversations", (long) histories.size());
+		stats.put("hotMessages", 0L);
+		stats.put("coldMessages", messages);
+		return stats;
+	}
+
+	@Override
+	public void close() {
+		segmentStore.close();
+	}
+
+	@Override
+	public String toString() {
+		return "log " + dir;
+	}
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+//keeps everything on the heap and saves nothing, for tests and benchmarks
+//also the bookkeeping the other backends build on: conversation key -> its list and members key
+public class MemoryMessageStore implements MessageStore {
+	protected final Map<String, List<Message>> histories = new ConcurrentHashMap<>(); //"TYPE|uid" -> the conversation's list
+	protected final Map<String, String> membersKeys = new ConcurrentHashMap<>(); //"TYPE|uid" -> membersKey
+	private final List<User> seedUsers;
+
+	public MemoryMessageStore() {
+		this(Collections.emptyList());
+	}
+
+	//users to start with, nothing else is ever read or written
+	public MemoryMessageStore(Collection<User> seedUsers) {
+		this.seedUsers = new ArrayList<>(seedUsers);
+	}
+
+	@Override
+	public Collection<User> loadUsers() {
+		return new ArrayList<>(seedUsers);
+	}
+
+	@Override
+	public void userAdded(User user) {
+	}
+
+	@Override
+	public Map<String, Integer> loadConversationIds() {
+		return new HashMap<>();
+	}
+
+	@Override
+	public Map<String, List<Message>> loadConversations() {
+		return new HashMap<>();
+	}
+
+	@Override
+	public List<Message> newMessageList(String membersKey) {
+		return new ArrayList<>();
+	}
+
+	@Override
+	public void conversationAdded(String type, int uid, String membersKey, List<Message> messages) {
+		histories.put(type + "|" + uid, messages);
+		membersKeys.put(type + "|" + uid, membersKey);
+	}
+
+	@Override
+	public void membersChanged(String type, int uid, String membersKey) {
+		membersKeys.put(type + "|" + uid, membersKey);
+	}
+
+	@Override
+	public void messageAdded(String type, int uid, Message msg) {
+	}
+
+	@Override
+	public List<Message> read(String type, int uid, int from, int to) {
+		List<Message> messages = histories.get(type + "|" + uid);
+		if (messages == null) {
+			return new ArrayList<>();
+		}
+		to = Math.min(to, messages.size());
+		from = Math.max(0, Math.min(from, to));
+		return new ArrayList<>(messages.subList(from, to));
+	}
+
+	@Override
+	public int count(String type, int uid) {
+		List<Message> messages = histories.get(type + "|" + uid);
+		return messages == null ? 0 : messages.size();
+	}
+
+	@Override
+	public CompletableFuture<Void> whenPersisted() {
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		long messages = 0;
+		for (List<Message> history : histories.values()) {
+			messages += history.size();
+		}
+		stats.put("conversations", (long) histories.size());
+		stats.put("hotMessages", messages);
+		return stats;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		return "memory";
+	}
+}
@@ -2,6 +2,7 @@ package server;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.List;
 
 public class Message implements Serializable {
@@ -9,6 +10,8 @@ public class Message implements Serializable {
 	private String message;
 	private String sender;
 	private List <String> recipients;
+	private long seq; //position in the conversation's arrival order, 1, 2, 3... set by the server, 0 for messages from before seqs existed
+	private String id; //made up by the sending client so a retried send can be recognised, null for older messages, stored with the message
 	
 	public Message(LocalDateTime timestamp, String message,String sender,List<String> recipients) {
 		this.timestamp = timestamp;
@@ -16,6 +19,31 @@ public class Message implements Serializable {
 		this.sender = sender;
 		this.recipients = recipients;
 	}
+	//adds a message to a timestamp ordered list and keeps it ordered, returns where it went
+	//normal case is a plain append, late arrivals get binary searched into place (after equal timestamps)
+	public static int insertInOrder(List<Message> messages, Message message) {
+		int size = messages.size();
+		if (size == 0 || !message.timestamp.isBefore(messages.get(size - 1).timestamp)) {
+			messages.add(message);
+			return size;
+		}
+		int lo = 0;
+		int hi = size - 1; //last element is known to be later
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (message.timestamp.isBefore(messages.get(mid).timestamp)) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		messages.add(lo, message);
+		if (messages instanceof TieredMessageList) {
+			lo = Math.max(lo, ((TieredMessageList) messages).coldSize()); //sealed messages never move
+		}
+		return lo;
+	}
+	
 	public LocalDateTime getTimestamp() {
 		return timestamp;
 	}
@@ -31,6 +59,104 @@ public class Message implements Serializable {
 	public List<String> getRecipients() {
 		return recipients;
 	}
+	
+	public long getSeq() {
+		return seq;
+	}
+	
+	void setSeq(long seq) {
+		this.seq = seq;
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	void setId(String id) {
+		this.id = id;
+	}
+	
+	//a message's place in its conversation that late arrivals don't move: (timestamp, seq key)
+	//the seq key is the seq, or for history from before seqs (seq 0) -(1 + the seq 0 messages with the same
+	//timestamp after it), new messages always have a seq so that count never changes
+	//it only looks at messages after the given one, so a client holding the newest part of a list gets the same key
+	static long seqKey(List<Message> messages, int position) {
+		Message msg = messages.get(position);
+		if (msg.seq != 0) {
+			return msg.seq;
+		}
+		long later = 0;
+		for (int i = position + 1; i < messages.size() && messages.get(i).timestamp.equals(msg.timestamp); i++) {
+			if (messages.get(i).seq == 0) {
+				later++;
+			}
+		}
+		return -(later + 1);
+	}
+	
+	//position of the message with this timestamp and seq key, -1 if the list doesn't have it
+	//binary search by timestamp, a tiered list can hold a late arrival out of place (see TieredMessageList),
+	//so a miss there is looked for again with a scan
+	static int find(List<Message> messages, LocalDateTime timestamp, long seqKey) {
+		int lo = 0;
+		int hi = messages.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (messages.get(mid).timestamp.isBefore(timestamp)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int end = lo;
+		while (end < messages.size() && messages.get(end).timestamp.equals(timestamp)) {
+			end++;
+		}
+		long legacy = 0;
+		for (int i = end - 1; i >= lo; i--) {
+			long seq = messages.get(i).seq;
+			if (seq == 0) {
+				seq = -(++legacy);
+			}
+			if (seq == seqKey) {
+				return i;
+			}
+		}
+		if (messages instanceof TieredMessageList && seqKey > 0) {
+			for (int i = 0; i < messages.size(); i++) {
+				if (messages.get(i).seq == seqKey && messages.get(i).timestamp.equals(timestamp)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+	
+	//nanoseconds since the epoch (UTC), how the indexes keep timestamps, good until 2262
+	static long epochNanos(LocalDateTime t) {
+		return t.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + t.getNano();
+	}
+	
+	static LocalDateTime ofEpochNanos(long nanos) {
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+	}
+	
+	//highest seq in a conversation's list
+	//the list is in timestamp order, a late arrival can carry the highest seq anywhere, so on heap lists are scanned
+	//stored lists know which record was written last and tiered ones remember the highest seq of each cold block
+	static long lastSeq(List<Message> messages) {
+		if (messages instanceof TieredMessageList) {
+			return ((TieredMessageList) messages).lastSeq();
+		}
+		if (messages instanceof StoredMessageList) {
+			return ((StoredMessageList) messages).lastSeq();
+		}
+		long last = 0;
+		for (Message m : messages) {
+			last = Math.max(last, m.seq);
+		}
+		return last;
+	}
 	public String toString() {
 		String s = "Sent at: " + timestamp + ", Sender: " + sender + "\nMessage Content: " + message + "\nRecipients: ";
 		for (int i = 0; i < recipients.size()-1; i++) {  //used newlines to break up long messages/recipients
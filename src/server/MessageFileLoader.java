@@ -0,0 +1,177 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+//loads All_Messages.txt in parallel
+//the file is cut into byte ranges that end on a newline, each range is parsed on a fork join pool
+//into "TYPE|members" -> messages, and the partial maps are merged back in file order
+//so a conversation's list is a few sorted runs that one TimSort pass merges
+public class MessageFileLoader {
+	static final int MIN_CHUNK = 1 << 20; //smaller files are parsed on the calling thread
+	static final int MAX_CHUNK = 32 << 20; //bounds the buffer each task holds
+
+	//parses the file from offset on and appends to the lists in into, lists that got records are re-sorted
+	public static Map<String, List<Message>> load(File file, long offset, Map<String, List<Message>> into, ForkJoinPool pool) {
+		if (!file.exists()) {
+			return into;
+		}
+		Map<String, List<Message>> loaded;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long[] bounds = chunkBounds(channel, offset, pool.getParallelism());
+			if (bounds.length == 2) {
+				loaded = parseRange(channel, bounds[0], bounds[1]);
+			} else {
+				loaded = pool.invoke(new ChunkTask(channel, bounds, 0, bounds.length - 1));
+			}
+		} catch (IOException | UncheckedIOException e) {
+			return into;
+		}
+		for (Map.Entry<String, List<Message>> entry : loaded.entrySet()) {
+			List<Message> messages = into.get(entry.getKey());
+			if (messages == null) {
+				messages = entry.getValue();
+				into.put(entry.getKey(), messages);
+			} else {
+				messages.addAll(entry.getValue());
+			}
+			messages.sort((m1, m2) -> m1.getTimestamp().compareTo(m2.getTimestamp()));
+		}
+		return into;
+	}
+
+	public static Map<String, List<Message>> load(File file, long offset, Map<String, List<Message>> into) {
+		return load(file, offset, into, ForkJoinPool.commonPool());
+	}
+
+	//offset, chunk ends..., file length; every inner boundary is just past a '\n'
+	static long[] chunkBounds(FileChannel channel, long offset, int parallelism) throws IOException {
+		long size = channel.size();
+		long length = Math.max(0, size - offset);
+		//a few chunks per core so an uneven chunk doesn't hold up the rest
+		long chunk = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, length / (Math.max(1, parallelism) * 4L) + 1));
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(offset);
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long pos = offset + chunk;
+		while (pos < size) {
+			long end = nextLineStart(channel, pos, probe);
+			if (end >= size) {
+				break;
+			}
+			bounds.add(end);
+			pos = end + chunk;
+		}
+		bounds.add(Math.max(offset, size));
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	//position after the first '\n' at or after pos, or the file size
+	private static long nextLineStart(FileChannel channel, long pos, ByteBuffer probe) throws IOException {
+		long size = channel.size();
+		while (pos < size) {
+			probe.clear();
+			int n = channel.read(probe, pos);
+			if (n <= 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				if (probe.get(i) == '\n') {
+					return pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	//parse the complete lines in [start, end)
+	static Map<String, List<Message>> parseRange(FileChannel channel, long start, long end) throws IOException {
+		Map<String, List<Message>> messagesByGroup = new HashMap<>();
+		MessageRecordCodec codec = new MessageRecordCodec(); //one per chunk, codecs aren't thread safe
+		byte[] bytes = new byte[(int) (end - start)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start + buffer.position()) < 0) {
+				break;
+			}
+		}
+		int lineStart = 0;
+		int limit = buffer.position();
+		for (int i = 0; i <= limit; i++) {
+			if (i == limit || bytes[i] == '\n') {
+				if (i > lineStart) {
+					parseLine(codec, new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8), messagesByGroup);
+				}
+				lineStart = i + 1;
+			}
+		}
+		return messagesByGroup;
+	}
+
+	//one MESSAGE| line into its conversation's list, anything else is skipped
+	static void parseLine(MessageRecordCodec codec, String line, Map<String, List<Message>> messagesByGroup) {
+		Message msg = codec.decode(line);
+		if (msg == null) {
+			return;
+		}
+		// Group key: "TYPE|members", the same key findOrCreateGroup routes by
+		List<String> members = new ArrayList<>(msg.getRecipients().size() + 1);
+		members.addAll(msg.getRecipients());
+		members.add(msg.getSender());
+		String groupKey = Server.membersKey("DM".equals(codec.getType()), members);
+		messagesByGroup.computeIfAbsent(groupKey, k -> new ArrayList<>()).add(msg);
+	}
+
+	//splits the chunk list in halves until one chunk is left, results are merged left then right to keep file order
+	private static class ChunkTask extends RecursiveTask<Map<String, List<Message>>> {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long[] bounds;
+		private final int from;
+		private final int to;
+
+		ChunkTask(FileChannel channel, long[] bounds, int from, int to) {
+			this.channel = channel;
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Map<String, List<Message>> compute() {
+			if (to - from == 1) {
+				try {
+					return parseRange(channel, bounds[from], bounds[to]);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			int mid = (from + to) >>> 1;
+			ChunkTask right = new ChunkTask(channel, bounds, mid, to);
+			right.fork();
+			Map<String, List<Message>> left = new ChunkTask(channel, bounds, from, mid).compute();
+			Map<String, List<Message>> rightResult = right.join();
+			for (Map.Entry<String, List<Message>> entry : rightResult.entrySet()) {
+				List<Message> messages = left.get(entry.getKey());
+				if (messages == null) {
+					left.put(entry.getKey(), entry.getValue());
+				} else {
+					messages.addAll(entry.getValue());
+				}
+			}
+			return left;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package server;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+//inverted index over message text for SEARCH requests
+//  term -> postings, the ids of the messages containing the term, in indexing order
+//every message is indexed once under a dense id that keeps its conversation, timestamp and Message.seqKey,
+//a hit is read back with Message.find, so a late arrival inserted mid-list leaves every posting as it is
+//terms are lowercased runs of letters and digits, each message counts once per term
+//ranking: sum of idf over the query terms a message contains, newer messages first on ties
+//the server calls everything with its conversation lock held, the same lock that guards the lists
+public class MessageIndex {
+	private static final int MAX_TERM = 64; //longer runs are cut, nobody searches for those
+
+	private final Map<String, Postings> terms = new HashMap<>();
+	private final Map<String, Integer> conversationIds = new HashMap<>(); //"TYPE|uid" -> dense id used by messages
+	private final List<String> conversationKeys = new ArrayList<>();
+	//per message id, 20 bytes each
+	private int[] conversations = new int[64];
+	private long[] times = new long[64]; //Message.epochNanos
+	private long[] seqKeys = new long[64];
+	private int messageCount;
+
+	//one ranked hit, found in its conversation's list with Message.find(list, timestamp, seqKey)
+	public static final class Hit {
+		public final String conversationKey;
+		public final LocalDateTime timestamp;
+		public final long seqKey;
+		final double score;
+		final long time;
+
+		Hit(String conversationKey, long time, long seqKey, double score) {
+			this.conversationKey = conversationKey;
+			this.timestamp = Message.ofEpochNanos(time);
+			this.seqKey = seqKey;
+			this.score = score;
+			this.time = time;
+		}
+	}
+
+	//msg is in the conversation's list under seqKey, see Message.seqKey
+	public void add(String conversationKey, long seqKey, Message msg) {
+		if (messageCount == conversations.length) {
+			conversations = Arrays.copyOf(conversations, messageCount * 2);
+			times = Arrays.copyOf(times, messageCount * 2);
+			seqKeys = Arrays.copyOf(seqKeys, messageCount * 2);
+		}
+		int id = messageCount++;
+		conversations[id] = conversationId(conversationKey);
+		times[id] = Message.epochNanos(msg.getTimestamp());
+		seqKeys[id] = seqKey;
+		for (String term : terms(msg.getMessage())) {
+			terms.computeIfAbsent(term, t -> new Postings()).add(id);
+		}
+	}
+
+	//every hit in the allowed conversations (null: all of them), best first
+	public List<Hit> search(String query, Set<String> allowed) {
+		Set<String> queryTerms = terms(query);
+		boolean[] permitted = new boolean[conversationKeys.size()];
+		for (int c = 0; c < permitted.length; c++) {
+			permitted[c] = allowed == null || allowed.contains(conversationKeys.get(c));
+		}
+		Map<Integer, double[]> scores = new HashMap<>();
+		for (String term : queryTerms) {
+			Postings postings = terms.get(term);
+			if (postings == null) {
+				continue;
+			}
+			double idf = Math.log(1 + (double) messageCount / postings.size);
+			for (int i = 0; i < postings.size; i++) {
+				int id = postings.ids[i];
+				if (permitted[conversations[id]]) {
+					scores.computeIfAbsent(id, k -> new double[1])[0] += idf;
+				}
+			}
+		}
+		List<Hit> hits = new ArrayList<>(scores.size());
+		for (Map.Entry<Integer, double[]> entry : scores.entrySet()) {
+			hits.add(hit(entry.getKey(), entry.getValue()[0]));
+		}
+		hits.sort(Comparator.comparingDouble((Hit h) -> -h.score).thenComparingLong(h -> -h.time));
+		return hits;
+	}
+
+	//how many messages contain term, 0 for unknown terms
+	public int documentFrequency(String term) {
+		Postings postings = terms.get(term);
+		return postings == null ? 0 : postings.size;
+	}
+
+	//messages containing term, in indexing order (unscored), at most max of them starting at position from
+	//postings are only ever appended, so a position is a cursor that new messages don't move
+	public List<Hit> postings(String term, int from, int max) {
+		Postings postings = terms.get(term);
+		List<Hit> result = new ArrayList<>();
+		if (postings == null) {
+			return result;
+		}
+		for (int i = from; i < postings.size && result.size() < max; i++) {
+			result.add(hit(postings.ids[i], 0));
+		}
+		return result;
+	}
+
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	public int getTermCount() {
+		return terms.size();
+	}
+
+	//distinct search terms of a text, in order of first appearance
+	static Set<String> terms(String text) {
+		Set<String> result = new LinkedHashSet<>();
+		if (text == null) {
+			return result;
+		}
+		StringBuilder term = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (term.length() < MAX_TERM) {
+					term.append(Character.toLowerCase(c));
+				}
+			} else if (term.length() > 0) {
+				result.add(term.toString());
+				term.setLength(0);
+			}
+		}
+		return result;
+	}
+
+	private Hit hit(int id, double score) {
+		return new Hit(conversationKeys.get(conversations[id]), times[id], seqKeys[id], score);
+	}
+
+	private int conversationId(String conversationKey) {
+		Integer id = conversationIds.get(conversationKey);
+		if (id == null) {
+			id = conversationKeys.size();
+			conversationIds.put(conversationKey, id);
+			conversationKeys.add(conversationKey);
+		}
+		return id;
+	}
+
+	//growable array of message ids, 4 bytes per posting
+	private static final class Postings {
+		int[] ids = new int[4];
+		int size;
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+//append only writer for the message file
+//callers hand over accepted messages, one background thread encodes them as MESSAGE| lines (MessageRecordCodec),
+//appends them in order and flushes whenever it runs out of work, so persistence costs only the new data
+//
+//durability (see Durability): in batch mode everything the thread picks up in one go is one group commit,
+//one write plus one FileChannel.force, and whenDurable() futures complete after that force
+//
+//a failed write doesn't lose the batch: the file is cut back to the end of the last good flush and every record
+//after that is retried first thing after a short pause, while durability waiters and tasks queued behind
+//those records fail, since what they wait for isn't on disk
+//
+//the writer tracks its byte position so snapshots can say exactly how much of the file they cover
+//a file that has been rewritten or compacted starts with a "JOURNAL|<generation>" line,
+//so an old snapshot can never be matched against a new file
+public class MessageJournal {
+	public static final String HEADER = "JOURNAL|";
+	private static final long RETRY_MILLIS = 1000; //pause before retrying records after a failed write
+
+	private final File file;
+	private final BlockingQueue<Object> pending = new LinkedBlockingQueue<>(); //Entry, Job or whenDurable() futures
+	private final Durability durability;
+	private final long windowMillis; //batch/sync modes: wait this long after the first record so more join the commit
+	private final Thread writerThread;
+	private volatile boolean running = true;
+	private OutputStream out;
+	private FileOutputStream fileOut; //under out, for force()
+	private boolean unforced; //written since the last force
+	private final List<Object> unflushed = new ArrayList<>(); //records handed to out since the last flush
+	private long flushedPosition; //end of the last flush, where a failed write cuts the file back to
+	private long position; //bytes in the file including everything written to out
+	private long generation;
+	//writer thread only, reused for every record
+	private final StringBuilder line = new StringBuilder(256);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+	public MessageJournal(File file) {
+		this(file, Durability.ASYNC, 0);
+	}
+
+	public MessageJournal(File file, Durability durability, long windowMillis) {
+		this.file = file;
+		this.durability = durability;
+		this.windowMillis = windowMillis;
+		this.generation = readGeneration(file);
+		this.position = file.length();
+		this.flushedPosition = position;
+		this.writerThread = new Thread(this::writeLoop, "message-journal");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	//generation from the header line, 0 for a plain file
+	public static long readGeneration(File file) {
+		if (!file.exists()) {
+			return 0;
+		}
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String first = br.readLine();
+			if (first != null && first.startsWith(HEADER)) {
+				return Long.parseLong(first.substring(HEADER.length()).trim());
+			}
+		} catch (IOException | NumberFormatException e) {
+		}
+		return 0;
+	}
+
+	//queue one message, never blocks on disk, encoding happens on the writer thread
+	public void append(String type, int uid, Message msg) {
+		pending.add(new Entry(type, uid, msg));
+	}
+
+	//completes once every message appended before this call is as durable as the mode promises
+	//async mode doesn't wait for the disk at all
+	public CompletableFuture<Void> whenDurable() {
+		if (durability == Durability.ASYNC) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> durable = new CompletableFuture<>();
+		pending.add(durable);
+		return durable;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	//completes with {generation, position} once every record queued before this call is in the file
+	public CompletableFuture<long[]> checkpoint() {
+		return submit(() -> {
+			flush();
+			return new long[] { generation, position };
+		});
+	}
+
+	//replace the whole file (compaction): records, then whatever was appended after the checkpoint mark
+	//they were copied at, so messages that came in while they were encoded are kept
+	//does nothing if the file was rewritten since the mark
+	public CompletableFuture<Void> rewrite(List<String> records, long[] mark) {
+		return submit(() -> {
+			if (mark[0] == generation) {
+				replaceFile(records, file, mark[1]);
+			}
+			return null;
+		});
+	}
+
+	//drop the part of the file the snapshot already covers, keeping the records written after it
+	//the snapshot is moved to the new generation first as <file>.next and renamed into place after the swap,
+	//so after a crash at any point one of the two files matches the journal on disk
+	public CompletableFuture<Void> compact(Snapshot snapshot, File snapshotFile) {
+		return submit(() -> {
+			if (snapshot.generation != generation) {
+				return null; //file was rewritten since the snapshot was taken
+			}
+			long dropBefore = snapshot.journalOffset;
+			File next = new File(snapshotFile.getPath() + ".next");
+			snapshot.generation = generation + 1;
+			snapshot.journalOffset = headerLength(generation + 1);
+			snapshot.write(next);
+			replaceFile(new ArrayList<>(), file, dropBefore);
+			Files.move(next.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return null;
+		});
+	}
+
+	//runs task on the writer thread after everything already queued
+	private <T> CompletableFuture<T> submit(Task<T> task) {
+		Job<T> job = new Job<>(task);
+		pending.add(job);
+		return job.result;
+	}
+
+	private static int headerLength(long generation) {
+		return (HEADER + generation + "\n").getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	//writer thread: new file = header + records + (bytes of keepFrom starting at keepOffset), swapped in atomically
+	private void replaceFile(List<String> records, File keepFrom, long keepOffset) throws IOException {
+		flush();
+		closeWriter();
+		long nextGeneration = generation + 1;
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			OutputStream bos = new BufferedOutputStream(fos);
+			bos.write((HEADER + nextGeneration + "\n").getBytes(StandardCharsets.UTF_8));
+			for (String record : records) {
+				write(bos, record);
+			}
+			if (keepFrom != null && keepFrom.exists()) {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(keepFrom))) {
+					in.skipNBytes(keepOffset);
+					in.transferTo(bos);
+				}
+			}
+			bos.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		unforced = false; //everything written so far went into the synced copy
+		generation = nextGeneration;
+		position = file.length();
+		flushedPosition = position;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void writeLoop() {
+		List<Object> batch = new ArrayList<>();
+		List<CompletableFuture<Void>> waiting = new ArrayList<>();
+		List<Object> retry = new ArrayList<>(); //records a failed batch didn't get to, they go ahead of anything new
+		while (running || !pending.isEmpty() || !retry.isEmpty()) {
+			int done = 0; //items of the batch handled so far
+			try {
+				if (retry.isEmpty()) {
+					batch.add(pending.take());
+				} else {
+					batch.addAll(retry);
+					retry.clear();
+					try {
+						Thread.sleep(RETRY_MILLIS);
+					} catch (InterruptedException e) {
+						//closing, last try
+					}
+				}
+				if (windowMillis > 0 && durability != Durability.ASYNC) {
+					try {
+						Thread.sleep(windowMillis);
+					} catch (InterruptedException e) {
+						//closing, commit what we have
+					}
+				}
+				pending.drainTo(batch);
+				for (; done < batch.size(); done++) {
+					Object item = batch.get(done);
+					if (item instanceof CompletableFuture) {
+						waiting.add((CompletableFuture<Void>) item);
+					} else {
+						handle(item);
+					}
+				}
+				commit();
+				for (CompletableFuture<Void> durable : waiting) {
+					durable.complete(null);
+				}
+			} catch (InterruptedException e) {
+				//woken up by close(), loop condition decides
+			} catch (IOException e) {
+				//disk trouble: fail the waiting senders and drop the writer so the retry reopens the file
+				System.out.println("Message journal write failed: " + e.getMessage());
+				for (CompletableFuture<Void> durable : waiting) {
+					durable.completeExceptionally(e);
+				}
+				failRest(batch.subList(done, batch.size()), retry, e);
+				rollBack();
+			} finally {
+				batch.clear();
+				waiting.clear();
+			}
+		}
+		closeWriter();
+	}
+
+	//after a failed write: the records since the last good flush plus the ones the batch didn't get to are kept
+	//for a retry (reported as lost once closing), waiters and jobs fail since they were queued behind them
+	@SuppressWarnings("unchecked")
+	private void failRest(List<Object> rest, List<Object> retry, IOException e) {
+		List<Object> unwritten = new ArrayList<>(unflushed);
+		for (Object item : rest) {
+			if (item instanceof Entry) {
+				unwritten.add(item);
+			} else if (item instanceof CompletableFuture) {
+				((CompletableFuture<Void>) item).completeExceptionally(e);
+			} else {
+				((Job<?>) item).result.completeExceptionally(e);
+			}
+		}
+		if (running) {
+			retry.addAll(unwritten);
+		} else if (!unwritten.isEmpty()) {
+			System.out.println(unwritten.size() + " message records could not be written to " + file);
+		}
+	}
+
+	//drops the writer and whatever it still buffers, and cuts off anything a failed flush got into the file,
+	//so the retried records are written once and no torn line is left behind
+	private void rollBack() {
+		unflushed.clear();
+		if (fileOut != null) {
+			try {
+				fileOut.close(); //not out, closing that would flush the buffer
+			} catch (IOException e) {
+			}
+			out = null;
+			fileOut = null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			if (channel.size() > flushedPosition) {
+				channel.truncate(flushedPosition);
+			}
+		} catch (IOException e) {
+			System.out.println("Message journal could not cut back a failed write: " + e.getMessage());
+		}
+		position = flushedPosition;
+	}
+
+	private void handle(Object item) throws IOException {
+		if (item instanceof Job) {
+			((Job<?>) item).run();
+			return;
+		}
+		if (out == null) {
+			fileOut = new FileOutputStream(file, true);
+			out = new BufferedOutputStream(fileOut, 1 << 16);
+			position = file.length();
+			flushedPosition = position;
+		}
+		Entry entry = (Entry) item;
+		line.setLength(0);
+		position += write(out, MessageRecordCodec.encode(line, entry.type, entry.uid, entry.message));
+		unflushed.add(entry);
+		unforced = true;
+		if (durability == Durability.SYNC) {
+			commit();
+		}
+	}
+
+	//end of a batch: one write of everything buffered, plus one force outside async mode
+	private void commit() throws IOException {
+		flush();
+		if (durability != Durability.ASYNC && unforced && fileOut != null) {
+			fileOut.getChannel().force(false);
+			unforced = false;
+		}
+	}
+
+	//chars plus '\n' as utf-8 through the reused buffer, returns the byte count
+	private int write(OutputStream target, CharSequence chars) throws IOException {
+		int worst = chars.length() * 3 + 1; //utf-8 never needs more per char
+		if (bytes.capacity() < worst) {
+			bytes = ByteBuffer.allocate(Math.max(worst, bytes.capacity() * 2));
+		}
+		bytes.clear();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(chars), bytes, true);
+		encoder.flush(bytes);
+		bytes.put((byte) '\n');
+		target.write(bytes.array(), 0, bytes.position());
+		return bytes.position();
+	}
+
+	private void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+			unflushed.clear();
+			flushedPosition = position;
+		}
+	}
+
+	private void closeWriter() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			out = null;
+			fileOut = null;
+		}
+	}
+
+	private static class Entry {
+		final String type;
+		final int uid;
+		final Message message;
+
+		Entry(String type, int uid, Message message) {
+			this.type = type;
+			this.uid = uid;
+			this.message = message;
+		}
+	}
+
+	//writer thread work that has to run in queue order, e.g. reading the position or swapping the file
+	private interface Task<T> {
+		T run() throws IOException;
+	}
+
+	private static class Job<T> {
+		final Task<T> task;
+		final CompletableFuture<T> result = new CompletableFuture<>();
+
+		Job(Task<T> task) {
+			this.task = task;
+		}
+
+		void run() {
+			try {
+				result.complete(task.run());
+			} catch (IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	//write out whatever is still queued and stop the writer thread
+	public void close() {
+		running = false;
+		writerThread.interrupt();
+		try {
+			writerThread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package server;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+//reads and writes the lines of All_Messages.txt
+//  MESSAGE|TYPE|UID|timestamp|sender|text|recipient,recipient[|seq[|id]]
+//the seq field is left out for messages without one (older files never have it),
+//the client's message id follows it for messages sent with one (seq 0 if there is an id but no seq)
+//escapes: \ as \\, | as \|, newline as \n, carriage return as \r, names also escape , as \,
+//an unknown escape is kept as written, older files never escaped the backslash itself
+//decoding is one scan over the line with no split/replace, names are interned so a big file
+//holds one String per user instead of one per mention
+//a codec instance keeps parse state and the intern table, use one per thread
+public class MessageRecordCodec {
+	public static final String PREFIX = "MESSAGE|";
+
+	private final StringBuilder scratch = new StringBuilder(128);
+	private String[] names = new String[64]; //open addressing intern table
+	private int nameCount;
+	private String type;
+	private int uid;
+
+	//type ("DM" / "GROUP") of the last decoded record
+	public String getType() {
+		return type;
+	}
+
+	//conversation UID of the last decoded record
+	public int getUid() {
+		return uid;
+	}
+
+	//null for anything that isn't a well formed MESSAGE| line (blank lines, JOURNAL| header, damaged records)
+	public Message decode(String line) {
+		int end = line.length();
+		while (end > 0 && line.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		int pos = 0;
+		while (pos < end && line.charAt(pos) <= ' ') {
+			pos++;
+		}
+		if (!line.startsWith(PREFIX, pos)) {
+			return null;
+		}
+		pos += PREFIX.length();
+
+		//type
+		int bar = line.indexOf('|', pos);
+		if (bar < 0 || bar > end) {
+			return null;
+		}
+		if (bar - pos == 2 && line.startsWith("DM", pos)) {
+			type = "DM";
+		} else if (bar - pos == 5 && line.startsWith("GROUP", pos)) {
+			type = "GROUP";
+		} else {
+			return null;
+		}
+		pos = bar + 1;
+
+		//uid
+		bar = line.indexOf('|', pos);
+		if (bar < 0 || bar > end) {
+			return null;
+		}
+		try {
+			uid = Integer.parseInt(line, pos, bar, 10);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		pos = bar + 1;
+
+		//timestamp
+		bar = line.indexOf('|', pos);
+		if (bar < 0 || bar > end) {
+			return null;
+		}
+		LocalDateTime timestamp = parseTimestamp(line, pos, bar);
+		if (timestamp == null) {
+			return null;
+		}
+		pos = bar + 1;
+
+		//sender
+		pos = unescape(line, pos, end, false);
+		if (pos >= end) {
+			return null;
+		}
+		String sender = intern(scratch);
+		pos++;
+
+		//text
+		pos = unescape(line, pos, end, false);
+		if (pos >= end) {
+			return null; //no recipients field
+		}
+		String text = scratch.toString();
+		pos++;
+
+		//recipients, up to the seq field if there is one
+		List<String> recipients = new ArrayList<>(2);
+		long seq = 0;
+		String id = null;
+		while (pos <= end) {
+			pos = unescape(line, pos, end, true);
+			if (scratch.length() > 0) {
+				recipients.add(intern(scratch));
+			}
+			if (pos < end && line.charAt(pos) == '|') {
+				int idBar = line.indexOf('|', pos + 1);
+				int seqEnd = idBar < 0 || idBar > end ? end : idBar;
+				try {
+					seq = Long.parseLong(line, pos + 1, seqEnd, 10);
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				if (seqEnd < end) {
+					unescape(line, seqEnd + 1, end, false);
+					id = scratch.length() > 0 ? scratch.toString() : null;
+				}
+				break;
+			}
+			pos++;
+		}
+		Message msg = new Message(timestamp, text, sender, recipients);
+		msg.setSeq(seq);
+		msg.setId(id);
+		return msg;
+	}
+
+	//copies line[pos, stop) into scratch with escapes resolved, stop is the next unescaped '|' (or ',' in lists) or end
+	//returns the index of the stop character, or end
+	private int unescape(String line, int pos, int end, boolean list) {
+		scratch.setLength(0);
+		while (pos < end) {
+			char c = line.charAt(pos);
+			if (c == '|' || (list && c == ',')) {
+				break;
+			}
+			if (c == '\\' && pos + 1 < end) {
+				char next = line.charAt(pos + 1);
+				switch (next) {
+					case '\\': case '|': case ',':
+						scratch.append(next);
+						break;
+					case 'n':
+						scratch.append('\n');
+						break;
+					case 'r':
+						scratch.append('\r');
+						break;
+					default:
+						scratch.append(c).append(next);
+				}
+				pos += 2;
+				continue;
+			}
+			scratch.append(c);
+			pos++;
+		}
+		if (list) {
+			//names were trimmed by the old loader, keep doing that
+			int from = 0;
+			int to = scratch.length();
+			while (to > 0 && scratch.charAt(to - 1) == ' ') {
+				to--;
+			}
+			while (from < to && scratch.charAt(from) == ' ') {
+				from++;
+			}
+			if (from > 0 || to < scratch.length()) {
+				scratch.setLength(to);
+				scratch.delete(0, from);
+			}
+		}
+		return pos;
+	}
+
+	//same String instance for the same name, no allocation when the name was seen before
+	private String intern(CharSequence chars) {
+		int hash = 0;
+		for (int i = 0; i < chars.length(); i++) {
+			hash = 31 * hash + chars.charAt(i);
+		}
+		int mask = names.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (names[slot] != null) {
+			String name = names[slot];
+			if (name.hashCode() == hash && name.contentEquals(chars)) {
+				return name;
+			}
+			slot = (slot + 1) & mask;
+		}
+		String name = chars.toString();
+		names[slot] = name;
+		if (++nameCount * 2 > names.length) {
+			String[] old = names;
+			names = new String[old.length * 2];
+			nameCount = 0;
+			for (String n : old) {
+				if (n != null) {
+					intern(n);
+				}
+			}
+		}
+		return name;
+	}
+
+	//ISO local date time as written by LocalDateTime.toString: yyyy-MM-ddTHH:mm[:ss[.fraction]]
+	static LocalDateTime parseTimestamp(String s, int from, int to) {
+		try {
+			if (to - from >= 16 && s.charAt(from + 4) == '-' && s.charAt(from + 7) == '-' && s.charAt(from + 10) == 'T' && s.charAt(from + 13) == ':') {
+				int year = digits(s, from, 4);
+				int month = digits(s, from + 5, 2);
+				int day = digits(s, from + 8, 2);
+				int hour = digits(s, from + 11, 2);
+				int minute = digits(s, from + 14, 2);
+				int second = 0;
+				int nano = 0;
+				int pos = from + 16;
+				if (pos < to) {
+					if (s.charAt(pos) != ':' || pos + 3 > to) {
+						return LocalDateTime.parse(s.substring(from, to));
+					}
+					second = digits(s, pos + 1, 2);
+					pos += 3;
+					if (pos < to) {
+						if (s.charAt(pos) != '.' || to - pos - 1 > 9 || to - pos - 1 < 1) {
+							return LocalDateTime.parse(s.substring(from, to));
+						}
+						int fraction = to - pos - 1;
+						nano = digits(s, pos + 1, fraction);
+						for (int i = fraction; i < 9; i++) {
+							nano *= 10;
+						}
+					}
+				}
+				if (year >= 0) {
+					return LocalDateTime.of(year, month, day, hour, minute, second, nano);
+				}
+			}
+			return LocalDateTime.parse(s.substring(from, to));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	//-1 if any char isn't a digit
+	private static int digits(String s, int from, int count) {
+		int value = 0;
+		for (int i = from; i < from + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	//appends one record (without line break) to sb
+	public static StringBuilder encode(StringBuilder sb, String type, int uid, Message msg) {
+		sb.append(PREFIX).append(type).append('|').append(uid).append('|');
+		appendTimestamp(sb, msg.getTimestamp());
+		sb.append('|');
+		escape(sb, msg.getSender(), false);
+		sb.append('|');
+		escape(sb, msg.getMessage(), false);
+		sb.append('|');
+		List<String> recipients = msg.getRecipients();
+		for (int i = 0; i < recipients.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			escape(sb, recipients.get(i), true);
+		}
+		if (msg.getSeq() > 0 || msg.getId() != null) {
+			sb.append('|').append(msg.getSeq());
+		}
+		if (msg.getId() != null) {
+			sb.append('|');
+			escape(sb, msg.getId(), false);
+		}
+		return sb;
+	}
+
+	public static String encode(String type, int uid, Message msg) {
+		return encode(new StringBuilder(64 + msg.getMessage().length()), type, uid, msg).toString();
+	}
+
+	private static void escape(StringBuilder sb, String s, boolean list) {
+		if (s == null) {
+			return;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '|':
+					sb.append("\\|");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case ',':
+					if (list) {
+						sb.append("\\,");
+					} else {
+						sb.append(c);
+					}
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+	}
+
+	//same text as LocalDateTime.toString without building the intermediate strings
+	static void appendTimestamp(StringBuilder sb, LocalDateTime t) {
+		int year = t.getYear();
+		if (year < 1000 || year > 9999) {
+			sb.append(t);
+			return;
+		}
+		sb.append(year).append('-');
+		pad(sb, t.getMonthValue(), 2).append('-');
+		pad(sb, t.getDayOfMonth(), 2).append('T');
+		pad(sb, t.getHour(), 2).append(':');
+		pad(sb, t.getMinute(), 2);
+		int second = t.getSecond();
+		int nano = t.getNano();
+		if (second > 0 || nano > 0) {
+			sb.append(':');
+			pad(sb, second, 2);
+			if (nano > 0) {
+				sb.append('.');
+				if (nano % 1_000_000 == 0) {
+					pad(sb, nano / 1_000_000, 3);
+				} else if (nano % 1000 == 0) {
+					pad(sb, nano / 1000, 6);
+				} else {
+					pad(sb, nano, 9);
+				}
+			}
+		}
+	}
+
+	private static StringBuilder pad(StringBuilder sb, int value, int width) {
+		for (int limit = 10, i = 1; i < width; i++, limit *= 10) {
+			if (value < limit) {
+				sb.append('0');
+			}
+		}
+		return sb.append(value);
+	}
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+//where users and message history live, picked at startup with -Dchat.store
+//  memory  MemoryMessageStore, nothing is saved (tests, benchmarks)
+//  file    FileMessageStore, All_Messages.txt journal plus binary snapshots (default)
+//  log     LogMessageStore, memory mapped segment files, history stays off the heap
+//conversations are named "TYPE|uid" like Server.conversationKey, history on disk is grouped by Server.membersKey
+//methods that touch conversations are called with the server's conversation lock held
+public interface MessageStore {
+
+	//users known at startup
+	Collection<User> loadUsers();
+
+	//a new account was created, save just that one
+	void userAdded(User user);
+
+	//UIDs given out by earlier runs, membersKey -> uid, read before loadConversations
+	//conversations without one get a new UID, which conversationAdded then saves
+	Map<String, Integer> loadConversationIds();
+
+	//history at startup, membersKey -> messages in timestamp order
+	//the lists are kept by the conversations, so a backend can hand out lists that read from disk
+	Map<String, List<Message>> loadConversations();
+
+	//empty message list for a conversation that is being created
+	List<Message> newMessageList(String membersKey);
+
+	//a conversation now exists under this type and uid, messages is the list it keeps (loaded or new)
+	void conversationAdded(String type, int uid, String membersKey, List<Message> messages);
+
+	//a group got a new member, so its membersKey changed
+	void membersChanged(String type, int uid, String membersKey);
+
+	//msg was just put into the conversation's list, save it
+	void messageAdded(String type, int uid, Message msg);
+
+	//messages [from, to) of a conversation in timestamp order, clamped to what exists
+	List<Message> read(String type, int uid, int from, int to);
+
+	int count(String type, int uid);
+
+	//completes once everything added so far is as durable as the backend promises
+	CompletableFuture<Void> whenPersisted();
+
+	//counters for monitoring: conversations, messages and whatever else the backend tracks
+	Map<String, Long> getStats();
+
+	void close();
+}
@@ -0,0 +1,81 @@
+package server;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+//an admin message history or QUERY result on its way to the client in chunks, one per open request of a connection
+//it only holds a cursor, every chunk is a fresh read from the server (a slice of the sender index,
+//or the next candidates of a query, see QueryScan), so neither side ever has the whole result at once
+//flow control: WINDOW chunks go out straight away, after that one more per MORE from the client,
+//so a slow client never fills its outbound queue
+class MessageStream {
+	static final int CHUNK = Integer.getInteger("chat.stream.chunk", 100); //messages per CHUNK packet
+	static final int WINDOW = Integer.getInteger("chat.stream.window", 4); //chunks sent before the client has to ask
+	static final int MAX_OPEN = 8; //streams per connection
+
+	//where a stream's messages come from, read front to back
+	interface Source {
+		//up to max more messages, fewer only once there are no more
+		List<Message> read(int max);
+	}
+
+	final int id;
+	final Type type; //GROUP for a user's history, QUERY for a query
+	final String label; //the username, or the query's plan
+	private final Source source;
+	private int remaining; //negative: no limit
+	private int sent;
+	private boolean done;
+
+	MessageStream(int id, Type type, String label, Source source, int limit) {
+		this.id = id;
+		this.type = type;
+		this.label = label;
+		this.source = source;
+		this.remaining = limit;
+	}
+
+	//the user's messages with from <= timestamp < to, each chunk a slice of the server's sender index
+	//that starts right after the last ref sent (like a HISTORY cursor), so a chunk costs its own size
+	//and messages arriving mid stream move nothing that is still to come
+	static MessageStream history(int id, Server server, String username, LocalDateTime from, LocalDateTime to, int offset, int limit) {
+		MetadataIndex.Ref[] cursor = { null };
+		return new MessageStream(id, Type.GROUP, username, max -> {
+			List<Message> chunk = new ArrayList<>();
+			while (chunk.size() < max) {
+				List<MetadataIndex.Ref> refs = server.getMessageRefsByUser(username, from, to, cursor[0], offset, max - chunk.size());
+				if (refs.isEmpty()) {
+					break;
+				}
+				cursor[0] = refs.get(refs.size() - 1);
+				for (Message msg : server.indexed(refs)) {
+					if (msg != null) {
+						chunk.add(msg);
+					}
+				}
+			}
+			return chunk;
+		}, limit);
+	}
+
+	//the next chunk, a short (possibly empty) one means this was the last
+	List<Message> next() {
+		int size = remaining < 0 ? CHUNK : Math.min(CHUNK, remaining);
+		List<Message> chunk = source.read(size);
+		sent += chunk.size();
+		if (remaining >= 0) {
+			remaining -= chunk.size();
+		}
+		done = chunk.size() < size || remaining == 0;
+		return chunk;
+	}
+
+	boolean isDone() {
+		return done;
+	}
+
+	int getSent() {
+		return sent;
+	}
+}
@@ -0,0 +1,173 @@
+package server;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+//secondary indexes over message metadata for the admin queries
+//  key -> references to the messages filed under it, in timestamp order
+//keys are "field:value", the server files every message under
+//  sender:<username>, to:<username> per recipient, conv:<TYPE|uid> and day:<yyyy-mm-dd>
+//a reference is (conversation, timestamp, Message.seqKey), so the index holds no messages itself,
+//cold or stored history stays where it is until a lookup reads the slice it returns (Message.find),
+//and a late arrival inserted mid-list moves no reference
+//keys are kept sorted so a day range is a sub map, iso dates sort like the days they name
+//the server calls everything with its conversation lock held
+public class MetadataIndex {
+	private final NavigableMap<String, Refs> byKey = new TreeMap<>();
+	private final Map<String, Integer> conversationIds = new HashMap<>(); //"TYPE|uid" -> dense id used in refs
+	private final List<String> conversationKeys = new ArrayList<>();
+
+	//one message, found in the conversation's list with Message.find(list, timestamp, seqKey)
+	public static final class Ref {
+		public final String conversationKey;
+		public final LocalDateTime timestamp;
+		public final long seqKey;
+		final long time; //Message.epochNanos of timestamp
+
+		Ref(String conversationKey, long time, long seqKey) {
+			this.conversationKey = conversationKey;
+			this.timestamp = Message.ofEpochNanos(time);
+			this.seqKey = seqKey;
+			this.time = time;
+		}
+	}
+
+	//msg is in the conversation's list under seqKey (see Message.seqKey), file it under each of keys
+	public void add(Collection<String> keys, String conversationKey, long seqKey, Message msg) {
+		int conversation = conversationId(conversationKey);
+		long time = Message.epochNanos(msg.getTimestamp());
+		for (String key : keys) {
+			byKey.computeIfAbsent(key, k -> new Refs()).insert(time, conversation, seqKey);
+		}
+	}
+
+	//refs under key with from <= timestamp < to, oldest first, skipping offset and returning at most limit
+	//null from/to leave that end open, a negative limit means no limit
+	//the refs are sorted arrays, so the offset is a seek: the cost is the page, not the refs before it
+	public List<Ref> slice(String key, LocalDateTime from, LocalDateTime to, int offset, int limit) {
+		Refs refs = byKey.get(key);
+		if (refs == null) {
+			return new ArrayList<>();
+		}
+		int start = from == null ? 0 : refs.lowerBound(Message.epochNanos(from));
+		int end = to == null ? refs.size : refs.lowerBound(Message.epochNanos(to));
+		return refs(refs, (int) Math.min(end, (long) start + Math.max(0, offset)), end, limit);
+	}
+
+	//refs under key that come after the ref after (from an earlier slice of the same key) and before to, oldest first,
+	//at most limit of them, for paging by cursor: a ref filed meanwhile moves no page boundary
+	//the cursor is found among the refs with its timestamp, a binary search and a short run
+	public List<Ref> sliceAfter(String key, Ref after, LocalDateTime to, int limit) {
+		Refs refs = byKey.get(key);
+		if (refs == null) {
+			return new ArrayList<>();
+		}
+		int start = refs.upperBound(after.time);
+		Integer conversation = conversationIds.get(after.conversationKey);
+		for (int i = refs.lowerBound(after.time); i < start; i++) {
+			if (conversation != null && refs.conversations[i] == conversation && refs.seqKeys[i] == after.seqKey) {
+				start = i + 1; //equal timestamps filed after the cursor still follow it
+				break;
+			}
+		}
+		int end = to == null ? refs.size : refs.lowerBound(Message.epochNanos(to));
+		return refs(refs, start, end, limit);
+	}
+
+	//refs[start, end), at most limit of them (negative: all)
+	private List<Ref> refs(Refs refs, int start, int end, int limit) {
+		if (limit >= 0 && end - start > limit) {
+			end = start + limit;
+		}
+		List<Ref> result = new ArrayList<>(Math.max(0, end - start));
+		for (int i = start; i < end; i++) {
+			result.add(new Ref(conversationKeys.get(refs.conversations[i]), refs.times[i], refs.seqKeys[i]));
+		}
+		return result;
+	}
+
+	//how many refs key has in [from, to), two binary searches
+	public int count(String key, LocalDateTime from, LocalDateTime to) {
+		Refs refs = byKey.get(key);
+		if (refs == null) {
+			return 0;
+		}
+		int start = from == null ? 0 : refs.lowerBound(Message.epochNanos(from));
+		int end = to == null ? refs.size : refs.lowerBound(Message.epochNanos(to));
+		return Math.max(0, end - start);
+	}
+
+	//keys in [fromKey, toKey], in order, e.g. the day buckets of a range
+	public List<String> keys(String fromKey, String toKey) {
+		return new ArrayList<>(byKey.subMap(fromKey, true, toKey, true).keySet());
+	}
+
+	public int getKeyCount() {
+		return byKey.size();
+	}
+
+	private int conversationId(String conversationKey) {
+		Integer id = conversationIds.get(conversationKey);
+		if (id == null) {
+			id = conversationKeys.size();
+			conversationIds.put(conversationKey, id);
+			conversationKeys.add(conversationKey);
+		}
+		return id;
+	}
+
+	//one key's refs as parallel arrays sorted by time, 20 bytes per message
+	private static final class Refs {
+		long[] times = new long[8]; //Message.epochNanos
+		int[] conversations = new int[8];
+		long[] seqKeys = new long[8];
+		int size;
+
+		//after any refs with the same time, so equal timestamps keep arrival order
+		void insert(long time, int conversation, long seqKey) {
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				conversations = Arrays.copyOf(conversations, size * 2);
+				seqKeys = Arrays.copyOf(seqKeys, size * 2);
+			}
+			int at = size == 0 || time >= times[size - 1] ? size : upperBound(time);
+			System.arraycopy(times, at, times, at + 1, size - at);
+			System.arraycopy(conversations, at, conversations, at + 1, size - at);
+			System.arraycopy(seqKeys, at, seqKeys, at + 1, size - at);
+			times[at] = time;
+			conversations[at] = conversation;
+			seqKeys[at] = seqKey;
+			size++;
+		}
+
+		//first index with times[i] >= time
+		int lowerBound(long time) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (times[mid] < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		//first index with times[i] > time
+		int upperBound(long time) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (times[mid] <= time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+}
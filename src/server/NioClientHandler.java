@@ -0,0 +1,154 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//ClientHandler for a non blocking SocketChannel owned by a NioServer event loop
+//reads and writes only ever happen on the loop thread, send() from any thread just queues a frame
+public class NioClientHandler extends ClientHandler {
+	private static final int INITIAL_BUFFER = 8 * 1024;
+
+	private final SocketChannel channel;
+	private final NioServer.EventLoop loop;
+	private SelectionKey key;
+
+	private PacketCodec codec; //null until the handshake byte arrived
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER);
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger(); //ConcurrentLinkedQueue.size() walks the queue
+	private volatile boolean closed = false;
+
+	public NioClientHandler(SocketChannel channel, Server server, NioServer.EventLoop loop) {
+		super(channel.socket(), server);
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	//nothing to run, the event loop drives this handler
+	@Override
+	public void run() {
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	//loop thread: pull bytes off the socket and dispatch every complete frame
+	void onReadable() throws IOException {
+		int n = channel.read(readBuffer);
+		if (n < 0) {
+			closeConnection();
+			return;
+		}
+		readBuffer.flip();
+		if (codec == null && readBuffer.hasRemaining()) {
+			codec = PacketCodec.forId(readBuffer.get() & 0xFF);
+			if (codec == null) {
+				closeConnection(); //legacy object stream clients can't use this transport
+				return;
+			}
+		}
+		while (readBuffer.remaining() >= 4) {
+			int length = readBuffer.getInt(readBuffer.position());
+			if (length < 0 || length > PacketFraming.MAX_FRAME) {
+				throw new IOException("Bad frame length: " + length);
+			}
+			if (readBuffer.remaining() < 4 + length) {
+				break;
+			}
+			readBuffer.position(readBuffer.position() + 4);
+			Packet packet = codec.decode(readBuffer.array(), readBuffer.position(), length);
+			readBuffer.position(readBuffer.position() + length);
+			dispatch(packet);
+			if (closed) {
+				return;
+			}
+		}
+		readBuffer.compact();
+		//make room for a frame bigger than the buffer
+		if (!readBuffer.hasRemaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, PacketFraming.MAX_FRAME + 4));
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+	}
+
+	//loop thread: write as much queued data as the socket takes
+	void onWritable() throws IOException {
+		ByteBuffer buf;
+		while ((buf = writeQueue.peek()) != null) {
+			channel.write(buf);
+			if (buf.hasRemaining()) {
+				return; //socket full, keep OP_WRITE and wait
+			}
+			writeQueue.poll();
+			queued.decrementAndGet();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	@Override
+	public void send(Packet packet) {
+		if (closed || codec == null) {
+			return;
+		}
+		if (queued.incrementAndGet() > MAX_QUEUED) {
+			loop.execute(this::closeConnection); //slow consumer
+			return;
+		}
+		try {
+			writeQueue.add(PacketFraming.frame(codec, packet)); //encode on the caller thread
+		} catch (IOException e) {
+			queued.decrementAndGet();
+			return;
+		}
+		if (loop.inLoop()) {
+			flush();
+		} else {
+			loop.execute(this::flush);
+		}
+	}
+
+	private void flush() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			onWritable();
+			if (!writeQueue.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			closeConnection();
+		}
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return Math.max(0, queued.get());
+	}
+
+	@Override
+	void closeConnection() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		writeQueue.clear();
+		queued.set(0);
+		super.closeConnection();
+	}
+}
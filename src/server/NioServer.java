@@ -0,0 +1,164 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//non blocking transport: one acceptor plus a small fixed set of selector event loops
+//every connection is owned by exactly one loop which reads, frames, decodes and dispatches its packets
+//only framed clients (codec handshake byte) can connect in this mode
+public class NioServer {
+	private final Server server;
+	private final ServerSocketChannel acceptChannel;
+	private final Selector acceptSelector;
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public NioServer(Server server, int port, int loopCount) throws IOException {
+		this.server = server;
+		this.acceptChannel = ServerSocketChannel.open();
+		acceptChannel.bind(new InetSocketAddress(port), 1024);
+		acceptChannel.configureBlocking(false);
+		this.acceptSelector = Selector.open();
+		acceptChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("nio-loop-" + i);
+		}
+	}
+
+	//starts the event loops then accepts on the calling thread until shutdown
+	public void start() {
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+		while (running) {
+			try {
+				acceptSelector.select();
+				Iterator<SelectionKey> it = acceptSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						accept();
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				break;
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = acceptChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			//round robin connections over the loops
+			EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+			NioClientHandler handler = new NioClientHandler(channel, server, loop);
+			loop.execute(() -> loop.register(handler));
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		try {
+			acceptSelector.close();
+			acceptChannel.close();
+		} catch (IOException e) {
+		}
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+	}
+
+	//single thread owning a selector and all the connections registered with it
+	static final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final Thread thread;
+		private volatile boolean open = true;
+
+		EventLoop(String name) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, name);
+			this.thread.setDaemon(true);
+		}
+
+		//run a task on the loop thread (used for registration and write interest changes)
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		boolean inLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+		void register(NioClientHandler handler) {
+			try {
+				SelectionKey key = handler.getChannel().register(selector, SelectionKey.OP_READ, handler);
+				handler.setKey(key);
+			} catch (IOException e) {
+				handler.closeConnection();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (open) {
+				try {
+					selector.select();
+				} catch (IOException | ClosedSelectorException e) {
+					break;
+				}
+				if (!open) {
+					break; //closed while selecting
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						System.out.println("SERVER: event loop task failed: " + e);
+					}
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					NioClientHandler handler = (NioClientHandler) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							handler.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							handler.onWritable();
+						}
+					} catch (IOException | CancelledKeyException e) {
+						handler.closeConnection();
+					} catch (RuntimeException e) {
+						//a bad frame or a handler bug costs this connection only, every other one on the loop keeps going
+						System.out.println("SERVER: closing connection after " + e);
+						handler.closeConnection();
+					}
+				}
+			}
+		}
+
+		void close() {
+			open = false;
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package server;
+
+import java.io.IOException;
+
+//turns a Packet into the bytes of one frame and back
+//framed connections start with a single byte naming the codec (see PacketFraming)
+public interface PacketCodec {
+	//codec ids sent as the first byte of a framed connection
+	//must never be 0xAC, that is how a plain ObjectOutputStream stream starts
+	byte SERIALIZED = 1;
+	byte BINARY = 2;
+
+	byte getId();
+
+	byte[] encode(Packet packet) throws IOException;
+
+	Packet decode(byte[] data, int offset, int length) throws IOException;
+
+	//look up codec by handshake byte, null if unknown
+	static PacketCodec forId(int id) {
+		if (id == SERIALIZED) {
+			return new SerializedPacketCodec();
+		}
+		if (id == BINARY) {
+			return new BinaryPacketCodec();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,40 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+//length prefixed frames: [int length][codec bytes]
+//a framed connection begins with one handshake byte holding the codec id
+public final class PacketFraming {
+	public static final int MAX_FRAME = 16 * 1024 * 1024; //16MB, anything bigger is a broken peer
+
+	private PacketFraming() {
+	}
+
+	//full frame (length + body) ready to put on the wire
+	public static ByteBuffer frame(PacketCodec codec, Packet packet) throws IOException {
+		byte[] body = codec.encode(packet);
+		ByteBuffer buf = ByteBuffer.allocate(4 + body.length);
+		buf.putInt(body.length);
+		buf.put(body);
+		buf.flip();
+		return buf;
+	}
+
+	//does not flush, so a writer can batch several frames into one socket write
+	public static void writeFrame(DataOutputStream out, PacketCodec codec, Packet packet) throws IOException {
+		byte[] body = codec.encode(packet);
+		out.writeInt(body.length);
+		out.write(body);
+	}
+
+	public static Packet readFrame(DataInputStream in, PacketCodec codec) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("Bad frame length: " + length);
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return codec.decode(body, 0, length);
+	}
+}
@@ -1,10 +1,15 @@
 
 package server;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class PacketHandler {
@@ -12,6 +17,7 @@ public class PacketHandler {
     private final Server server;
     private final EnumMap<Type, ClientPacketDelegate> clientDelegates;
     private final EnumMap<Type, ServerPacketDelegate> serverDelegates;
+    private final Map<Integer, MessageStream> streams = new HashMap<>(); //server side: this connection's open admin history and query streams
 
     public PacketHandler(Client client) {
         this.client = client;
@@ -43,6 +49,9 @@ public class PacketHandler {
         clientDelegates.put(Type.ERROR, this::handleError);
         clientDelegates.put(Type.LOGOUT, this::handleLogout);
         clientDelegates.put(Type.GROUP, this::handleGroup);
+        clientDelegates.put(Type.HISTORY, this::handleHistory);
+        clientDelegates.put(Type.SEARCH, this::handleSearch);
+        clientDelegates.put(Type.QUERY, this::handleQuery);
     }
 
     private void registerServerDelegates() {
@@ -50,6 +59,9 @@ public class PacketHandler {
         serverDelegates.put(Type.MESSAGES, this::handleMessageRequest);
         serverDelegates.put(Type.USERS, this::handleUserRequest);
         serverDelegates.put(Type.GROUP, this::handleGroupRequest);
+        serverDelegates.put(Type.HISTORY, this::handleHistoryRequest);
+        serverDelegates.put(Type.SEARCH, this::handleSearchRequest);
+        serverDelegates.put(Type.QUERY, this::handleQueryRequest);
     }
 
     private interface ClientPacketDelegate {
@@ -111,14 +123,21 @@ public class PacketHandler {
             User user = authenticated.get();
             // Register the client in both ClientHandler and Server's activeClients map
             handler.registerClient(user, handler.getSocket());
-            server.registeredClient(user, handler.getSocket(), handler.getOutputStream());
+            server.registeredClient(user, handler);
             // Send user object
             Packet userResponse = new Packet(Type.USERS, "SINGLE", List.of(user));
             handler.send(userResponse);
-            // Get all groups/direct messages for this user
-            List<Object> userGroups = server.getGroupsForUser(user.getUsername());
+            Map<String, Long> seen = extractLastSeen(packet);
+            if (seen != null) {
+                // Reconnect from a client that kept its conversations: only what it missed
+                Packet syncPacket = new Packet(Type.GROUP, "SYNC", server.syncGroupsForUser(user.getUsername(), seen, server.getHistoryPageSize()));
+                handler.send(syncPacket);
+                return;
+            }
+            // Get all groups/direct messages for this user, only the newest page of each
+            // older messages are fetched with HISTORY requests when the user scrolls up
+            List<Object> userGroups = server.getGroupsForUser(user.getUsername(), server.getHistoryPageSize());
             // Always send groups packet, even if empty (so client knows login is complete)
-            server.sortAllMessages(); // Sort all messages before sending
             Packet groupsPacket = new Packet(Type.GROUP, "ALL", userGroups);
             handler.send(groupsPacket);
         } else {
@@ -149,6 +168,30 @@ public class PacketHandler {
         return Collections.emptyList();
     }
 
+    //LOGIN/REQUEST: [List<LoginInfo>] or, from a reconnecting client, [List<LoginInfo>, last seen]
+    //last seen is flat: kind "DM" or "GROUP", uid, seq (Long) for every conversation the client kept
+    //null for a plain login
+    private Map<String, Long> extractLastSeen(Packet packet) {
+        List<Object> content = packet.getcontent();
+        if (content == null || content.size() < 2 || !(content.get(1) instanceof List<?>)) {
+            return null;
+        }
+        List<?> flat = (List<?>) content.get(1);
+        Map<String, Long> seen = new HashMap<>();
+        for (int i = 0; i + 2 < flat.size(); i += 3) {
+            Object uid = flat.get(i + 1);
+            Object seq = flat.get(i + 2);
+            if (uid instanceof Integer && seq instanceof Number) {
+                String kind = "GROUP".equals(String.valueOf(flat.get(i))) ? "GROUP" : "DM";
+                seen.put(kind + "|" + uid, ((Number) seq).longValue());
+            }
+        }
+        return seen;
+    }
+
+    //answer to SEARCH, QUERY and admin history while the server is still indexing the history it loaded
+    private static final String INDEXING = "Message history is still being indexed, try again shortly";
+
     private void sendError(ClientHandler handler, String status, String message) {
         Packet errorPacket = new Packet(Type.ERROR, status, List.of(message));
         handler.send(errorPacket);
@@ -203,8 +246,7 @@ public class PacketHandler {
                 //validate all recipients exist
                 List<String> invalidRecipients = new ArrayList<>();
                 for (String recipient : msg.getRecipients()) {
-                    Optional<User> recipientUser = server.findUserByUsername(recipient);
-                    if (!recipientUser.isPresent()) {
+                    if (!server.userExists(recipient)) {
                         invalidRecipients.add(recipient);
                     }
                 }
@@ -214,56 +256,29 @@ public class PacketHandler {
                     continue;
                 }
                 
-                //store message in master log
-                server.getMasterLog().add(msg);
-                
                 //build participant list (sender + recipients)
                 List<String> participants = new ArrayList<>();
                 participants.add(msg.getSender());
                 participants.addAll(msg.getRecipients());
                 
-                //find or create group
-                Object groupObj = server.findOrCreateGroup(participants, msg.getSender(), msg.getMessage(), msg.getTimestamp());
+                //into the participants' conversation, a new one starts with this message
+                Object groupObj = server.storeMessage(participants, msg);
+                if (groupObj == null) {
+                    //a retry of a send we already stored: not stored twice, but confirmed with MESSAGES/SENT
+                    //once the original is saved, so the client stops resending it
+                    server.whenPersisted().thenRun(() -> handler.send(new Packet(Type.MESSAGES, "SENT", new ArrayList<>(List.of(msg)))));
+                    continue;
+                }
                 
                 if (groupObj instanceof Group) {
                     Group group = (Group) groupObj;
-                    
-                    //check if message already exists (new groups are created with the message already included)
-                    boolean messageExists = group.getMessages().stream()
-                        .anyMatch(m -> m.getSender().equals(msg.getSender()) && 
-                                      m.getMessage().equals(msg.getMessage()) &&
-                                      m.getTimestamp().equals(msg.getTimestamp()));
-                    
-                    if (!messageExists) {
-                        server.addMessageToGroup(group, msg);
-                    }
-                    
-                    //save to file asynchronously
-                    server.saveGroupsToFileAsync();
-                    
-                    //send to all participants
-                    List<String> allParticipants = group.getGroupUsers();
-                    sendGroupsToParticipant(allParticipants, senderUser.getUsername(), handler);
+                    //send just the new message to all participants
+                    sendAppendToParticipants("GROUP", group.getGroupUID(), group.getGroupUsers(), msg, senderUser.getUsername(), handler);
                     
                 } else if (groupObj instanceof DirectMessage) {
                     DirectMessage dm = (DirectMessage) groupObj;
-                    
-                    //check if message already exists
-                    boolean messageExists = dm.getMessage().stream()
-                        .anyMatch(m -> m.getSender().equals(msg.getSender()) && 
-                                      m.getMessage().equals(msg.getMessage()) &&
-                                      m.getTimestamp().equals(msg.getTimestamp()));
-                    
-                    if (!messageExists) {
-                        server.addMessageToDirectMessage(dm, msg);
-                    }
-                    
-                    //save to file asynchronously
-                    server.saveGroupsToFileAsync();
-                    
-                    //send to all participants
-                    List<String> allParticipants = dm.getGroupUsers();
-                    sendGroupsToParticipant(allParticipants, senderUser.getUsername(), handler);
+                    //send just the new message to all participants
+                    sendAppendToParticipants("DM", dm.getChatUID(), dm.getGroupUsers(), msg, senderUser.getUsername(), handler);
                 }
             }
         } catch (Exception e) {
@@ -271,48 +286,28 @@ public class PacketHandler {
         }
     }
     
-    private void sendGroupsToParticipant(List<String> allParticipants, String senderName, ClientHandler handler) {
+    //GROUP/APPEND delta: [kind "DM" or "GROUP", uid, participants, List<Message>]
+    //clients append the messages to the conversation they already have (or start it if they don't)
+    //instead of being sent every conversation they belong to
+    //the sender's copy doubles as its acknowledgment, so in batch/sync durability it waits until the message is on disk
+    private void sendAppendToParticipants(String kind, int uid, List<String> allParticipants, Message msg, String senderName, ClientHandler handler) {
+        List<Object> content = new ArrayList<>();
+        content.add(kind);
+        content.add(uid);
+        content.add(new ArrayList<>(allParticipants));
+        content.add(new ArrayList<>(List.of(msg)));
+        Packet packet = new Packet(Type.GROUP, "APPEND", content);
+        
         for (String participantName : allParticipants) {
-            List<Object> participantGroups = new ArrayList<>();
-            
-            // Add all groups the participant is in
-            for (Group g : server.getGroups()) {
-                if (g.getGroupUsers().contains(participantName)) {
-                    List<String> users = new ArrayList<>(g.getGroupUsers());
-                    List<Message> msgs = new ArrayList<>(g.getMessages());
-                    Group freshGroup = new Group(users, msgs);
-                    try {
-                        java.lang.reflect.Field uidField = Group.class.getDeclaredField("groupUID");
-                        uidField.setAccessible(true);
-                        uidField.set(freshGroup, g.getGroupUID());
-                    } catch (Exception e) {
-                    }
-                    participantGroups.add(freshGroup);
-                }
-            }
-            
-            //add all direct messages the participant is in
-            for (DirectMessage dm : server.getDirectChats()) {
-                if (dm.getGroupUsers().contains(participantName)) {
-                    List<String> users = new ArrayList<>(dm.getGroupUsers());
-                    List<Message> msgs = new ArrayList<>(dm.getMessage());
-                    DirectMessage freshDM = new DirectMessage(users, msgs);
-                    try {
-                        java.lang.reflect.Field uidField = DirectMessage.class.getDeclaredField("chatUID");
-                        uidField.setAccessible(true);
-                        uidField.set(freshDM, dm.getChatUID());
-                    } catch (Exception e) {
-                    }
-                    participantGroups.add(freshDM);
-                }
-            }
-            
-            server.sortAllMessages();
-            Packet packet = new Packet(Type.GROUP, "ALL", participantGroups);
-            
             // send to  sender using handler, others via server
             if (participantName.equals(senderName)) {
-                handler.send(packet);
+                server.whenPersisted().whenComplete((ok, error) -> {
+                    if (error != null) {
+                        sendError(handler, "MESSAGES", "Message could not be saved");
+                    } else {
+                        handler.send(packet);
+                    }
+                });
             } else {
                 Optional<User> participant = server.findUserByUsername(participantName);
                 if (participant.isPresent()) {
@@ -347,23 +342,37 @@ public class PacketHandler {
 
         User newUser = (User) first;
         String username = newUser.getUsername();
+        if (username == null || username.trim().isEmpty()) {
+            sendError(handler, "USERS", "Invalid user data");
+            return;
+        }
+        //All_Users.txt is one "username|password|admin" line per user and member lists are joined with commas,
+        //a name or password holding those characters wouldn't read back as the same account
+        String password = newUser.getPassword();
+        if (password == null || containsAny(username, "|,\r\n") || containsAny(password, "|\r\n")) {
+            sendError(handler, "USERS", "Usernames can't contain '|', ',' or line breaks, passwords can't contain '|' or line breaks");
+            return;
+        }
 
-        //check if username already exists
-        //option is a container that can be empty, just in case so it doesnt throw an error
-        Optional<User> existing = server.findUserByUsername(username);
-        if (existing.isPresent()) {
+        //add user to server's user list and save it, fails if username already exists
+        if (!server.addUser(newUser)) {
             sendError(handler, "USERS", "Username already exists");
             return;
         }
-        //aAdd user to server's user list
-        server.getUsers().add(newUser);
-        //save users to file
-        server.saveUsersToFile();
         //send success response
         Packet successPacket = new Packet(Type.USERS, "SUCCESS", List.of(newUser));
         handler.send(successPacket);
     }
 
+    private static boolean containsAny(String text, String chars) {
+        for (int i = 0; i < text.length(); i++) {
+            if (chars.indexOf(text.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*
      * *********************************************************
      * CLIENT: USER PACKET HANDLER
@@ -422,8 +431,14 @@ public class PacketHandler {
      * Handles requests for user message history (admin feature)
      * ********************************************************
      */
+    //GROUP/REQUEST: [username, from, to, offset, limit, stream id], everything after the username optional
+    //the messages come back as GROUP/CHUNK [stream id, username, List<Message>] packets, oldest first,
+    //then GROUP/END [stream id, username, total]; the client asks for each further chunk with GROUP/MORE [stream id]
+    //and can drop a stream it no longer wants with GROUP/CANCEL [stream id]
     private void handleGroupRequest(Packet packet, ClientHandler handler) {
-        if (!"REQUEST".equalsIgnoreCase(packet.getStatus())) {
+        String status = packet.getStatus();
+        boolean more = "MORE".equalsIgnoreCase(status);
+        if (!"REQUEST".equalsIgnoreCase(status) && !more && !"CANCEL".equalsIgnoreCase(status)) {
             return;
         }
 
@@ -434,6 +449,15 @@ public class PacketHandler {
         }
 
         List<Object> content = packet.getcontent();
+        if (!"REQUEST".equalsIgnoreCase(status)) {
+            if (content != null && !content.isEmpty() && content.get(0) instanceof Integer) {
+                MessageStream stream = more ? streams.get(content.get(0)) : streams.remove(content.get(0));
+                if (stream != null && more) {
+                    sendChunk(stream, handler);
+                }
+            }
+            return;
+        }
         if (content == null || content.isEmpty()) {
             sendError(handler, "GROUP", "No username provided");
             return;
@@ -447,12 +471,168 @@ public class PacketHandler {
             return;
         }
 
-        //get all messages by this user
-        List<Message> userMessages = server.getAllMessagesByUser(targetUsername);
+        //optional range: [username, from, to, offset, limit], from/to are ISO timestamps (null or "" for open)
+        LocalDateTime from;
+        LocalDateTime to;
+        try {
+            from = parseTime(content, 1);
+            to = parseTime(content, 2);
+        } catch (DateTimeParseException e) {
+            sendError(handler, "GROUP", "Invalid time range");
+            return;
+        }
+        int offset = content.size() > 3 && content.get(3) instanceof Integer ? (Integer) content.get(3) : 0;
+        int limit = content.size() > 4 && content.get(4) instanceof Integer ? (Integer) content.get(4) : -1;
+        int id = content.size() > 5 && content.get(5) instanceof Integer ? (Integer) content.get(5) : 0;
 
-        // send messages back
-        Packet responsePacket = new Packet(Type.GROUP, "MESSAGES", List.of(userMessages));
-        handler.send(responsePacket);
+        if (streams.size() >= MessageStream.MAX_OPEN && !streams.containsKey(id)) {
+            sendError(handler, "GROUP", "Too many open requests");
+            return;
+        }
+        if (!server.isHistoryIndexed()) {
+            sendError(handler, "GROUP", INDEXING);
+            return;
+        }
+        //messages by this user, read from the server's sender index one chunk at a time
+        MessageStream stream = MessageStream.history(id, server, targetUsername, from, to, offset, limit);
+        streams.put(id, stream);
+        for (int i = 0; i < MessageStream.WINDOW && streams.get(id) == stream; i++) {
+            sendChunk(stream, handler);
+        }
+    }
+
+    private void sendChunk(MessageStream stream, ClientHandler handler) {
+        List<Message> chunk = stream.next();
+        if (!chunk.isEmpty()) {
+            List<Object> content = new ArrayList<>();
+            content.add(stream.id);
+            content.add(stream.label);
+            content.add(chunk);
+            handler.send(new Packet(stream.type, "CHUNK", content));
+        }
+        if (stream.isDone()) {
+            streams.remove(stream.id, stream);
+            List<Object> content = new ArrayList<>();
+            content.add(stream.id);
+            content.add(stream.label);
+            content.add(stream.getSent());
+            handler.send(new Packet(stream.type, "END", content));
+        }
+    }
+
+    private LocalDateTime parseTime(List<Object> content, int index) {
+        if (content.size() <= index || content.get(index) == null || content.get(index).toString().isEmpty()) {
+            return null;
+        }
+        return LocalDateTime.parse(content.get(index).toString());
+    }
+
+    /*
+     * ********************************************************
+     * SERVER: HISTORY REQUEST PACKET HANDLER
+     * Pages older messages of one conversation
+     * ********************************************************
+     */
+    //HISTORY/REQUEST: [kind "DM" or "GROUP", uid, before, beforeKey, limit]
+    //the cursor is the oldest message the client has, its timestamp and Message.seqKey, the reply holds up to
+    //limit messages just before it; an empty before pages back from the newest message
+    //HISTORY/PAGE:    [kind, uid, older, List<Message>, before, beforeKey], older is how many are still left, 0 at the start
+    //late arrivals are inserted in the middle of the list, so positions move but the message a cursor names doesn't
+    private void handleHistoryRequest(Packet packet, ClientHandler handler) {
+        if (!"REQUEST".equalsIgnoreCase(packet.getStatus())) {
+            return;
+        }
+
+        User requester = handler.getLoggedInUser();
+        if (requester == null) {
+            sendError(handler, "HISTORY", "User not logged in");
+            return;
+        }
+
+        List<Object> content = packet.getcontent();
+        if (content == null || content.size() < 4 || !(content.get(1) instanceof Integer)
+                || !(content.get(3) instanceof Long)) {
+            sendError(handler, "HISTORY", "Invalid history request");
+            return;
+        }
+        String kind = "GROUP".equals(String.valueOf(content.get(0))) ? "GROUP" : "DM";
+        int uid = (Integer) content.get(1);
+        LocalDateTime before;
+        try {
+            before = parseTime(content, 2);
+        } catch (DateTimeParseException e) {
+            sendError(handler, "HISTORY", "Invalid history request");
+            return;
+        }
+        long beforeKey = (Long) content.get(3);
+        int limit = server.getHistoryPageSize();
+        if (content.size() > 4 && content.get(4) instanceof Integer && (Integer) content.get(4) > 0) {
+            limit = Math.min(limit, (Integer) content.get(4));
+        }
+
+        if (!server.isMember(kind, uid, requester.getUsername())) {
+            sendError(handler, "HISTORY", "Conversation not found");
+            return;
+        }
+
+        List<Object> page = server.readHistory(kind, uid, before, beforeKey, limit);
+        if (page == null) {
+            sendError(handler, "HISTORY", "Message not found");
+            return;
+        }
+
+        List<Object> response = new ArrayList<>();
+        response.add(kind);
+        response.add(uid);
+        response.add(page.get(0));
+        response.add(page.get(1));
+        response.add(content.get(2));
+        response.add(beforeKey);
+        handler.send(new Packet(Type.HISTORY, "PAGE", response));
+    }
+
+    /*
+     * ********************************************************
+     * SERVER: SEARCH REQUEST PACKET HANDLER
+     * Full text search over the requester's conversations
+     * ********************************************************
+     */
+    //SEARCH/REQUEST: [query, page, page size], page starts at 0, size defaults to 20
+    //SEARCH/RESULTS: [query, page, total hits, hit...], a hit is [kind, uid, position, Message]
+    //admins search every conversation, everyone else only the ones they are in
+    private void handleSearchRequest(Packet packet, ClientHandler handler) {
+        if (!"REQUEST".equalsIgnoreCase(packet.getStatus())) {
+            return;
+        }
+
+        User requester = handler.getLoggedInUser();
+        if (requester == null) {
+            sendError(handler, "SEARCH", "User not logged in");
+            return;
+        }
+
+        List<Object> content = packet.getcontent();
+        if (content == null || content.isEmpty() || !(content.get(0) instanceof String)) {
+            sendError(handler, "SEARCH", "Invalid search request");
+            return;
+        }
+        String query = (String) content.get(0);
+        int page = content.size() > 1 && content.get(1) instanceof Integer ? Math.max(0, (Integer) content.get(1)) : 0;
+        int size = 20;
+        if (content.size() > 2 && content.get(2) instanceof Integer && (Integer) content.get(2) > 0) {
+            size = Math.min(100, (Integer) content.get(2));
+        }
+
+        if (!server.isHistoryIndexed()) {
+            sendError(handler, "SEARCH", INDEXING);
+            return;
+        }
+
+        List<Object> response = new ArrayList<>();
+        response.add(query);
+        response.add(page);
+        response.addAll(server.searchMessages(requester.getUsername(), requester.isAdmin(), query, page, size));
+        handler.send(new Packet(Type.SEARCH, "RESULTS", response));
     }
 
     /*
@@ -479,11 +659,14 @@ public class PacketHandler {
             }
         }
         
-        //handle sent confirmation
+        //handle sent confirmation, the server's answer to a retried send it already had
         if ("SENT".equalsIgnoreCase(status)) {
             for (Object obj : content) {
                 if (obj instanceof Message) {
                     Message msg = (Message) obj;
+                    if (client != null) {
+                        client.acknowledge(List.of(msg));
+                    }
                     return msg;
                 }
             }
@@ -524,6 +707,9 @@ public class PacketHandler {
             String errorMsg = content.get(0).toString();
             
             //show error dialog for user creation, message errors, or group errors (move gui in the future)
+            if ("HISTORY".equalsIgnoreCase(status) && client != null) {
+                client.clearPendingHistory(); //the page isn't coming, scrolling up may ask again
+            }
             if ("USERS".equalsIgnoreCase(status) || "MESSAGES".equalsIgnoreCase(status) || "GROUP".equalsIgnoreCase(status)) {
                 javax.swing.SwingUtilities.invokeLater(() -> {
                     javax.swing.JOptionPane.showMessageDialog(null, 
@@ -540,6 +726,144 @@ public class PacketHandler {
         return null;
     }
 
+    /*
+     * *******************************************************
+     * CLIENT: HISTORY PACKET HANDLER
+     * Older messages paged in for a conversation the client already has
+     * ******************************************************
+     */
+    private Object handleHistory(Packet packet) {
+        List<Object> content = packet.getcontent();
+        if (!"PAGE".equalsIgnoreCase(packet.getStatus()) || content == null || content.size() < 6
+                || !(content.get(1) instanceof Integer) || !(content.get(2) instanceof Integer)
+                || !(content.get(3) instanceof List<?>) || !(content.get(5) instanceof Long)) {
+            return null;
+        }
+        String kind = String.valueOf(content.get(0));
+        int uid = (Integer) content.get(1);
+        int older = (Integer) content.get(2);
+        List<Message> olderMessages = new ArrayList<>();
+        for (Object item : (List<?>) content.get(3)) {
+            if (item instanceof Message) {
+                olderMessages.add((Message) item);
+            }
+        }
+        if (client != null) {
+            return client.prependMessages("GROUP".equals(kind), uid, older, olderMessages,
+                    String.valueOf(content.get(4)), (Long) content.get(5));
+        }
+        return null;
+    }
+
+    /*
+     * ********************************************************
+     * SERVER: QUERY REQUEST PACKET HANDLER
+     * Admin query over sender, recipient, conversation, time and text
+     * ********************************************************
+     */
+    //QUERY/REQUEST: AdminQuery name/value pairs, then the stream id (a trailing odd element, so the pairs still read)
+    //the matches stream back like an admin history: QUERY/CHUNK [stream id, plan, List<Message>] packets,
+    //oldest first and at most the query's limit in all, then QUERY/END [stream id, plan, total];
+    //QUERY/MORE [stream id] asks for the next chunk, QUERY/CANCEL [stream id] drops the stream
+    private void handleQueryRequest(Packet packet, ClientHandler handler) {
+        String status = packet.getStatus();
+        boolean more = "MORE".equalsIgnoreCase(status);
+        if (!"REQUEST".equalsIgnoreCase(status) && !more && !"CANCEL".equalsIgnoreCase(status)) {
+            return;
+        }
+
+        User requester = handler.getLoggedInUser();
+        if (requester == null || !requester.isAdmin()) {
+            sendError(handler, "QUERY", "Access denied. Admin privileges required.");
+            return;
+        }
+
+        List<Object> content = packet.getcontent() == null ? Collections.emptyList() : packet.getcontent();
+        if (!"REQUEST".equalsIgnoreCase(status)) {
+            if (!content.isEmpty() && content.get(0) instanceof Integer) {
+                MessageStream stream = more ? streams.get(content.get(0)) : streams.remove(content.get(0));
+                if (stream != null && more) {
+                    sendChunk(stream, handler);
+                }
+            }
+            return;
+        }
+
+        AdminQuery query;
+        try {
+            query = AdminQuery.fromContent(content);
+        } catch (DateTimeParseException e) {
+            sendError(handler, "QUERY", "Invalid time range");
+            return;
+        }
+        int id = content.size() % 2 == 1 && content.get(content.size() - 1) instanceof Integer
+                ? (Integer) content.get(content.size() - 1) : 0;
+
+        if (streams.size() >= MessageStream.MAX_OPEN && !streams.containsKey(id)) {
+            sendError(handler, "QUERY", "Too many open requests");
+            return;
+        }
+        if (!server.isHistoryIndexed()) {
+            sendError(handler, "QUERY", INDEXING);
+            return;
+        }
+        QueryScan scan = server.queryMessages(query);
+        System.out.println("SERVER: Query " + query + " by " + requester.getUsername() + ": " + scan.getPlan());
+
+        MessageStream stream = new MessageStream(id, Type.QUERY, scan.getPlan(), scan, query.getLimit());
+        streams.put(id, stream);
+        for (int i = 0; i < MessageStream.WINDOW && streams.get(id) == stream; i++) {
+            sendChunk(stream, handler);
+        }
+    }
+
+    /*
+     * *******************************************************
+     * CLIENT: QUERY PACKET HANDLER
+     * ******************************************************
+     */
+    private Object handleQuery(Packet packet) {
+        List<Object> content = packet.getcontent();
+        if (content == null || content.size() < 3 || !(content.get(0) instanceof Integer) || client == null) {
+            return null;
+        }
+        String status = packet.getStatus();
+
+        if ("CHUNK".equalsIgnoreCase(status) && content.get(2) instanceof List<?>) {
+            List<Message> chunk = new ArrayList<>();
+            for (Object item : (List<?>) content.get(2)) {
+                if (item instanceof Message) {
+                    chunk.add((Message) item);
+                }
+            }
+            client.appendQueryResults((Integer) content.get(0), chunk);
+            return chunk;
+        }
+
+        if ("END".equalsIgnoreCase(status)) {
+            client.endQueryResults((Integer) content.get(0), String.valueOf(content.get(1)));
+        }
+        return null;
+    }
+
+    /*
+     * *******************************************************
+     * CLIENT: SEARCH PACKET HANDLER
+     * ******************************************************
+     */
+    private Object handleSearch(Packet packet) {
+        List<Object> content = packet.getcontent();
+        if (!"RESULTS".equalsIgnoreCase(packet.getStatus()) || content == null || content.size() < 3
+                || !(content.get(1) instanceof Integer) || !(content.get(2) instanceof Integer)) {
+            return null;
+        }
+        if (client != null) {
+            client.setSearchResults(String.valueOf(content.get(0)), (Integer) content.get(1), (Integer) content.get(2),
+                    new ArrayList<>(content.subList(3, content.size())));
+        }
+        return null;
+    }
+
     /*
      * *******************************************************
      * CLIENT: GROUP PACKET HANDLER
@@ -554,6 +878,25 @@ public class PacketHandler {
 
         String status = packet.getStatus();
         
+        if ("CHUNK".equalsIgnoreCase(status) && content.size() >= 3 && content.get(0) instanceof Integer
+                && content.get(2) instanceof List<?>) {
+            //one chunk of an admin message history stream
+            List<Message> chunk = new ArrayList<>();
+            for (Object item : (List<?>) content.get(2)) {
+                if (item instanceof Message) {
+                    chunk.add((Message) item);
+                }
+            }
+            client.appendUserMessages((Integer) content.get(0), String.valueOf(content.get(1)), chunk);
+            return chunk;
+        }
+        
+        if ("END".equalsIgnoreCase(status) && content.size() >= 3 && content.get(0) instanceof Integer
+                && content.get(2) instanceof Integer) {
+            client.endUserMessages((Integer) content.get(0), String.valueOf(content.get(1)), (Integer) content.get(2));
+            return null;
+        }
+        
         if ("MESSAGES".equalsIgnoreCase(status)) {
             //admin message history response
             List<Message> messages = new ArrayList<>();
@@ -589,6 +932,54 @@ public class PacketHandler {
                 client.setMyGroups(allGroups);
             }
             return allGroups;
+        } else if ("SYNC".equalsIgnoreCase(status)) {
+            //reconnect: [deltas, pages], see Server.syncGroupsForUser
+            if (content.size() < 2 || !(content.get(0) instanceof List<?>) || !(content.get(1) instanceof List<?>)) {
+                return null;
+            }
+            List<Object> deltas = new ArrayList<>();
+            for (Object obj : (List<?>) content.get(0)) {
+                if (obj instanceof Group || obj instanceof DirectMessage) {
+                    deltas.add(obj);
+                }
+            }
+            List<Object> pages = new ArrayList<>();
+            for (Object obj : (List<?>) content.get(1)) {
+                if (obj instanceof Group || obj instanceof DirectMessage) {
+                    pages.add(obj);
+                }
+            }
+            if (client != null) {
+                client.syncGroups(deltas, pages);
+                try {
+                    client.resendUnacknowledged();
+                } catch (IOException e) {
+                    //connection gone again, the next reconnect retries
+                }
+            }
+            return client != null ? client.getMyGroups() : null;
+        } else if ("APPEND".equalsIgnoreCase(status)) {
+            //delta: new messages for one conversation
+            if (content.size() < 4 || !(content.get(1) instanceof Integer)
+                    || !(content.get(2) instanceof List<?>) || !(content.get(3) instanceof List<?>)) {
+                return null;
+            }
+            String kind = String.valueOf(content.get(0));
+            int uid = (Integer) content.get(1);
+            List<String> participants = new ArrayList<>();
+            for (Object item : (List<?>) content.get(2)) {
+                participants.add(item.toString());
+            }
+            List<Message> newMessages = new ArrayList<>();
+            for (Object item : (List<?>) content.get(3)) {
+                if (item instanceof Message) {
+                    newMessages.add((Message) item);
+                }
+            }
+            if (client != null) {
+                return client.appendMessages("GROUP".equals(kind), uid, participants, newMessages);
+            }
+            return null;
         } else if ("UPDATE".equalsIgnoreCase(status)) {
             //single group/direct message update
             Object groupObj = content.get(0);
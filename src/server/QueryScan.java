@@ -0,0 +1,89 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+//the read side of an admin QUERY (see Server.queryMessages): the plan's candidates come in pages of refs,
+//each copied under the server's lock (see Candidates), then resolved and checked against every field
+//of the query outside it, so neither a big candidate list nor a big result is ever held at once and
+//the matches go out as QUERY/CHUNKs while the scan is still running
+class QueryScan implements MessageStream.Source {
+	private static final int BATCH = 256; //refs per page, resolved per lock hold
+
+	//the plan's candidates, oldest first
+	interface Candidates {
+		//up to max more, an empty list once there are no more
+		List<MetadataIndex.Ref> next(int max);
+	}
+
+	private final Server server;
+	private final AdminQuery query;
+	private final Set<String> terms;
+	private final String plan;
+	private final Candidates candidates;
+	private List<MetadataIndex.Ref> page = new ArrayList<>();
+	private int position; //in page
+	private int skip;
+
+	QueryScan(Server server, AdminQuery query, Set<String> terms, String plan, Candidates candidates, int skip) {
+		this.server = server;
+		this.query = query;
+		this.terms = terms;
+		this.plan = plan;
+		this.candidates = candidates;
+		this.skip = skip;
+	}
+
+	//e.g. "sender:Bob (24 candidates)"
+	String getPlan() {
+		return plan;
+	}
+
+	public List<Message> read(int max) {
+		List<Message> result = new ArrayList<>();
+		while (result.size() < max) {
+			if (position == page.size()) {
+				page = candidates.next(BATCH);
+				position = 0;
+				if (page.isEmpty()) {
+					break;
+				}
+			}
+			List<MetadataIndex.Ref> batch = page.subList(position, page.size());
+			List<Message> messages = server.indexed(batch);
+			for (int i = 0; i < batch.size() && result.size() < max; i++) {
+				position++;
+				Message msg = messages.get(i);
+				if (msg == null || !matches(batch.get(i).conversationKey, msg)) {
+					continue;
+				}
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				result.add(msg);
+			}
+		}
+		return result;
+	}
+
+	private boolean matches(String conversationKey, Message msg) {
+		if (query.getSender() != null && !query.getSender().equals(msg.getSender())) {
+			return false;
+		}
+		if (query.getRecipient() != null && !msg.getRecipients().contains(query.getRecipient())) {
+			return false;
+		}
+		if (query.getConversation() != null && !query.getConversation().equals(conversationKey)) {
+			return false;
+		}
+		if (query.getSince() != null && msg.getTimestamp().isBefore(query.getSince())) {
+			return false;
+		}
+		if (query.getUntil() != null && !msg.getTimestamp().isBefore(query.getUntil())) {
+			return false;
+		}
+		return terms.isEmpty() || MessageIndex.terms(msg.getMessage()).containsAll(terms);
+	}
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+//ids seen in the last window, to drop retried messages in O(1) instead of scanning the conversation
+//bounded both ways: ids older than the window are forgotten and so are the oldest once there are max of them
+//every call evicts what has run out from the front of the arrival order, so the cost stays constant per message
+//not thread safe, the server calls it with its conversation lock held
+public class RecentIds {
+	private final long windowNanos;
+	private final int max;
+	private final Map<String, Long> seen = new HashMap<>(); //id -> when it was first seen
+	private final ArrayDeque<String> order = new ArrayDeque<>(); //ids in arrival order, for eviction
+
+	public RecentIds(long windowMillis, int max) {
+		this.windowNanos = windowMillis * 1_000_000L;
+		this.max = max;
+	}
+
+	//true the first time an id is seen within the window, false for a repeat
+	public boolean add(String id) {
+		long now = System.nanoTime();
+		evict(now);
+		if (seen.putIfAbsent(id, now) != null) {
+			return false;
+		}
+		order.add(id);
+		return true;
+	}
+
+	//true if id was seen within the window, doesn't add it
+	public boolean contains(String id) {
+		evict(System.nanoTime());
+		return seen.containsKey(id);
+	}
+
+	public int size() {
+		return order.size();
+	}
+
+	private void evict(long now) {
+		while (!order.isEmpty()) {
+			Long at = seen.get(order.peek());
+			if (at != null && now - at < windowNanos && order.size() < max) {
+				return;
+			}
+			seen.remove(order.poll());
+		}
+	}
+}
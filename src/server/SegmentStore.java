@@ -0,0 +1,337 @@
+package server;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+//message history kept in fixed size memory mapped segment files instead of on the heap
+//  seg-NNNNN.dat  binary message records back to back: [int length][record], a 0 length marks the end
+//  index.dat      one entry per record: [conversation key][long location], location = segment << 32 | offset
+//startup only reads index.dat (plus the tail of the newest segment in case the index lags behind)
+//conversation keys are Server.membersKey values, they don't change between runs like UIDs do
+public class SegmentStore {
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private final File dir;
+	private final int segmentSize;
+	private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>(); //read without the lock, a new one is mapped every segmentSize bytes
+	private final Map<String, LongList> index = new HashMap<>(); //key -> record locations, in append order
+	private final ReentrantLock lock = new ReentrantLock(); //appends and index updates
+	private DataOutputStream indexOut;
+	private int writeSegment = 0;
+	private int writeOffset = 0;
+
+	public SegmentStore(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public SegmentStore(File dir, int segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		for (int i = 0; segmentFile(i).exists(); i++) {
+			segments.add(map(i));
+		}
+		if (segments.isEmpty()) {
+			segments.add(map(0));
+		}
+		long lastIndexed = loadIndex();
+		recoverTail(lastIndexed);
+		indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(), true)));
+	}
+
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return index.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//every conversation key in the store
+	public Set<String> keys() {
+		lock.lock();
+		try {
+			return new HashSet<>(index.keySet());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int count(String key) {
+		lock.lock();
+		try {
+			LongList locations = index.get(key);
+			return locations == null ? 0 : locations.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//message number i of a conversation, in append order
+	public Message read(String key, int i) {
+		long location = location(key, i);
+		//record bytes never change once written, so reading needs no lock
+		return decode(segments.get((int) (location >>> 32)), (int) location);
+	}
+
+	//just the timestamp of message number i, without decoding the rest of the record
+	public LocalDateTime timestamp(String key, int i) {
+		long location = location(key, i);
+		MappedByteBuffer buf = segments.get((int) (location >>> 32));
+		int pos = (int) location + 4;
+		pos += 4 + buf.getInt(pos); //key
+		return LocalDateTime.ofEpochSecond(buf.getLong(pos), buf.getInt(pos + 8), ZoneOffset.UTC);
+	}
+
+	private long location(String key, int i) {
+		lock.lock();
+		try {
+			LongList locations = index.get(key);
+			if (locations == null || i < 0 || i >= locations.size()) {
+				throw new IndexOutOfBoundsException("Message " + i + " of " + key);
+			}
+			return locations.get(i);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//messages [from, to) of a conversation
+	public List<Message> read(String key, int from, int to) {
+		List<Message> result = new ArrayList<>(Math.max(0, to - from));
+		for (int i = from; i < to; i++) {
+			result.add(read(key, i));
+		}
+		return result;
+	}
+
+	public void append(String key, Message msg) throws IOException {
+		byte[] record = encode(key, msg);
+		if (4 + record.length + 4 > segmentSize) {
+			throw new IOException("Message too big for a segment");
+		}
+		lock.lock();
+		try {
+			//keep 4 bytes free at the end of each segment for the 0 length end marker
+			if (writeOffset + 4 + record.length + 4 > segmentSize) {
+				writeSegment++;
+				writeOffset = 0;
+				if (segments.size() <= writeSegment) {
+					segments.add(map(writeSegment));
+				}
+			}
+			MappedByteBuffer seg = segments.get(writeSegment);
+			seg.put(writeOffset + 4, record);
+			seg.putInt(writeOffset, record.length); //length last, a torn write reads as the end
+			long location = ((long) writeSegment << 32) | writeOffset;
+			writeOffset += 4 + record.length;
+
+			index.computeIfAbsent(key, k -> new LongList()).add(location);
+			indexOut.writeUTF(key);
+			indexOut.writeLong(location);
+			indexOut.flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//push mapped pages and the index to disk
+	public void force() throws IOException {
+		lock.lock();
+		try {
+			for (MappedByteBuffer seg : segments) {
+				seg.force();
+			}
+			indexOut.flush();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() {
+		lock.lock();
+		try {
+			force();
+			indexOut.close();
+		} catch (IOException e) {
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private File segmentFile(int n) {
+		return new File(dir, String.format("seg-%05d.dat", n));
+	}
+
+	private File indexFile() {
+		return new File(dir, "index.dat");
+	}
+
+	private MappedByteBuffer map(int n) throws IOException {
+		try (FileChannel ch = FileChannel.open(segmentFile(n).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			//the mapping stays valid after the channel is closed
+			return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+	}
+
+	//returns location of the last indexed record, -1 if none
+	private long loadIndex() throws IOException {
+		File file = indexFile();
+		long last = -1;
+		if (!file.exists()) {
+			return last;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				String key;
+				long location;
+				try {
+					key = in.readUTF();
+					location = in.readLong();
+				} catch (EOFException e) {
+					break; //a half written entry at the end is just dropped
+				}
+				index.computeIfAbsent(key, k -> new LongList()).add(location);
+				last = Math.max(last, location);
+			}
+		}
+		return last;
+	}
+
+	//find the write position, indexing any records that made it to a segment but not to index.dat
+	private void recoverTail(long lastIndexed) throws IOException {
+		int seg = 0;
+		int offset = 0;
+		if (lastIndexed >= 0) {
+			seg = (int) (lastIndexed >>> 32);
+			offset = (int) lastIndexed;
+			offset += 4 + segments.get(seg).getInt(offset);
+		}
+		List<long[]> recovered = new ArrayList<>();
+		while (seg < segments.size()) {
+			MappedByteBuffer buf = segments.get(seg);
+			int length = offset + 4 <= segmentSize ? buf.getInt(offset) : 0;
+			if (length <= 0 || offset + 4 + length > segmentSize) {
+				//end of this segment, carry on in the next one if it has data
+				if (seg + 1 < segments.size() && segments.get(seg + 1).getInt(0) > 0) {
+					seg++;
+					offset = 0;
+					continue;
+				}
+				break;
+			}
+			recovered.add(new long[] { seg, offset });
+			offset += 4 + length;
+		}
+		writeSegment = seg;
+		writeOffset = offset;
+		if (!recovered.isEmpty()) {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(), true)))) {
+				for (long[] r : recovered) {
+					long location = (r[0] << 32) | r[1];
+					String key = readKey(segments.get((int) r[0]), (int) r[1]);
+					index.computeIfAbsent(key, k -> new LongList()).add(location);
+					out.writeUTF(key);
+					out.writeLong(location);
+				}
+			}
+		}
+	}
+
+	//record: [key][epoch second][nano][sender][text][recipient count][recipients][seq][id], strings are [int length][utf-8]
+	//records written before seqs existed end after the recipients, before client ids after the seq; no id is ""
+	private static byte[] encode(String key, Message msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeString(out, key);
+		out.writeLong(msg.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+		out.writeInt(msg.getTimestamp().getNano());
+		writeString(out, msg.getSender());
+		writeString(out, msg.getMessage());
+		out.writeInt(msg.getRecipients().size());
+		for (String r : msg.getRecipients()) {
+			writeString(out, r);
+		}
+		out.writeLong(msg.getSeq());
+		writeString(out, msg.getId() == null ? "" : msg.getId());
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(MappedByteBuffer buf, int[] pos) {
+		int n = buf.getInt(pos[0]);
+		byte[] b = new byte[n];
+		buf.get(pos[0] + 4, b);
+		pos[0] += 4 + n;
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static String readKey(MappedByteBuffer buf, int offset) {
+		return readString(buf, new int[] { offset + 4 });
+	}
+
+	private static Message decode(MappedByteBuffer buf, int offset) {
+		int[] pos = { offset + 4 };
+		readString(buf, pos); //key
+		long seconds = buf.getLong(pos[0]);
+		int nanos = buf.getInt(pos[0] + 8);
+		pos[0] += 12;
+		String sender = readString(buf, pos);
+		String text = readString(buf, pos);
+		int n = buf.getInt(pos[0]);
+		pos[0] += 4;
+		List<String> recipients = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			recipients.add(readString(buf, pos));
+		}
+		Message msg = new Message(LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC), text, sender, recipients);
+		int end = offset + 4 + buf.getInt(offset);
+		if (pos[0] + 8 <= end) {
+			msg.setSeq(buf.getLong(pos[0]));
+			pos[0] += 8;
+		}
+		if (pos[0] + 4 <= end) {
+			String id = readString(buf, pos);
+			msg.setId(id.isEmpty() ? null : id);
+		}
+		return msg;
+	}
+
+	//growable long array, keeps the index at 8 bytes per message
+	private static final class LongList {
+		private long[] values = new long[8];
+		private int size;
+
+		void add(long v) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = v;
+		}
+
+		long get(int i) {
+			return values[i];
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package server;
+
+import java.io.*;
+
+//frame codec using plain java serialization, one object stream per frame
+//so frames are independent of each other (no shared handle table)
+public class SerializedPacketCodec implements PacketCodec {
+
+	@Override
+	public byte getId() {
+		return SERIALIZED;
+	}
+
+	@Override
+	public byte[] encode(Packet packet) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(packet);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public Packet decode(byte[] data, int offset, int length) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+			return (Packet) in.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Bad packet frame", e);
+		}
+	}
+}
@@ -5,8 +5,7 @@ import java.net.*;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*; //package for multithreading (ExecutorService, ThreadPool, ConcurrentHashMap)
-
-import javax.swing.JOptionPane;
+import java.util.concurrent.locks.ReentrantLock;
 
 import server.Packet;
 import server.ClientHandler;
@@ -16,40 +15,78 @@ import server.Message;
 
 public class Server {
 	//lists stored in mem for now 
-	private List<User> users = new ArrayList<>();
+	//username -> User, lookups (and misses) are a single hash probe and safe while users are being created
+	private final Map<String, User> users = new ConcurrentHashMap<>();
 	private List<DirectMessage> directChats = new ArrayList<>();
 	private List<Group> groups = new ArrayList<>();
-	private List<Log> logs = new ArrayList<>();
-	private List<Message> masterLog = new ArrayList<>(); // all msgs sent thru server
 	
-	private Boolean modified; //UPDATE TO TRUE ANY TIME ADDING MESSAGES TO directChats OR groups********
-	private final String msgsFile = "AllChats.txt"; //filename to write messages to
+	//participant index: username -> keys ("DM|uid" / "GROUP|uid") of the conversations they are in
+	//so login only touches the user's own conversations instead of scanning every one on the server
+	private final Map<String, Set<String>> conversationsByUser = new ConcurrentHashMap<>();
+	//conversation key -> Group or DirectMessage
+	private final Map<String, Object> conversationsByKey = new ConcurrentHashMap<>();
+	//membersKey(...) -> Group or DirectMessage, routes a message to its conversation without scanning
+	private final Map<String, Object> conversationsByMembers = new ConcurrentHashMap<>();
 	
 	private ServerSocket serverSocket;
+	private final MessageStore store; //users and history on disk (or not), -Dchat.store=file|log|memory
+	private final int historyPage = Integer.getInteger("chat.history.page", 50); //messages per conversation sent on login and per HISTORY page
+	private final MessageIndex searchIndex = new MessageIndex(); //message text -> positions for SEARCH, guarded by conversationLock
+	private final long dedupWindow = Long.getLong("chat.dedup.window", 10 * 60 * 1000L); //ms a client message id is remembered for
+	private final RecentIds recentMessageIds = new RecentIds(dedupWindow, Integer.getInteger("chat.dedup.max", 100_000)); //"sender|id" of stored messages, to drop retried sends, guarded by conversationLock
+	private final MetadataIndex metadataIndex = new MetadataIndex(); //sender/recipient/conversation/day -> messages in time order, for admin queries, guarded by conversationLock
+	private final Map<String, Long> unindexed = new LinkedHashMap<>(); //loaded conversations the indexer hasn't done yet -> their last seq at boot, guarded by conversationLock
+	private volatile boolean historyIndexed; //the indexer is done, SEARCH/QUERY/admin history see everything
+	private static final int INDEX_BATCH = 256; //loaded messages indexed per lock hold
+	private static final int QUERY_PAGE = 1024; //text query candidates copied per lock hold
+	private final TransportMode transportMode;
+	private NioServer nioServer; //only used in NIO mode
 	
 	//mutithreading and client management
 	//threadpoool reusable group of threads managed by java
 	private ExecutorService threadPool; //executorservice manage pool of threads to run tasks so dont need to create and manage threads manually
+	private final ThreadMode threadMode;
+	
+	//explicit locks instead of synchronized so virtual threads don't pin their carrier
+	//while they wait here or do file io inside
+	private final ReentrantLock conversationLock = new ReentrantLock(); //groups, directChats and their messages
 	
 	//map storing which user connected on which socket
 	//concurrenthashmap threadsafe version when mult threads edit at once
 	//Using username as key since User objects don't have equals/hashCode
 	private final Map<String, Socket> activeClients = new ConcurrentHashMap<>();
-	//map storing ObjectOutputStreams for each client (must reuse, not recreate)
-	private final Map<String, ObjectOutputStream> clientOutputStreams = new ConcurrentHashMap<>();
+	//map storing the handler for each client, sends go through the handler so blocking
+	//object streams, framed streams and nio channels all look the same to the server
+	//each handler owns an outbound queue, see getQueueDepths()
+	private final Map<String, ClientHandler> clientOutputStreams = new ConcurrentHashMap<>();
 	
 	
 	//constructor
 	public Server(int port) {
-		modified = false;
-		seedUsers();
-		loadGroupsFromFile(); // Load groups and messages from file
+		this(port, TransportMode.BLOCKING, ThreadMode.PLATFORM);
+	}
+	
+	public Server(int port, TransportMode transportMode, ThreadMode threadMode) {
+		this.transportMode = transportMode;
+		this.threadMode = threadMode;
+		store = openStore(System.getProperty("chat.store", "file"));
+		for (User user : store.loadUsers()) {
+			users.putIfAbsent(user.getUsername(), user);
+		}
+		loadConversations();
+		startIndexer();
 		try {
-			serverSocket = new ServerSocket(port);
-			
-			//create pool of reusable threads for handling clients and 
-			//newCachedThreadPool is scalable and reuses threads
-			threadPool = Executors.newCachedThreadPool();
+			if (transportMode == TransportMode.NIO) {
+				//one event loop per core is plenty, they never block on idle clients
+				nioServer = new NioServer(this, port, Runtime.getRuntime().availableProcessors());
+			} else {
+				serverSocket = new ServerSocket(port);
+				
+				//create pool of reusable threads for handling clients and 
+				//newCachedThreadPool is scalable and reuses threads, virtual mode gives every client its own cheap thread
+				threadPool = threadMode.newExecutor();
+			}
+			System.out.println("Transport: " + transportMode + ", threads: " + threadMode);
 			if (port == 12345) {
 				System.out.println("Started on port: 12345");
 			}
@@ -58,68 +95,22 @@ public class Server {
 		}
 	}
 
-	private void seedUsers() {
-		try {
-			// Try multiple possible locations for the file
-			File file = new File("All_Users.txt");
-			if (!file.exists()) {
-				// Try in src directory
-				file = new File("src/All_Users.txt");
-			}
-			
-			if (file.exists()) {
-				BufferedReader br = new BufferedReader(new FileReader(file));
-				String line;
-				while ((line = br.readLine()) != null) {
-					line = line.trim();
-					if (line.isEmpty()) {
-						continue;
-					}
-					// Format: username|password|admin(boolean)
-					String[] parts = line.split("\\|");
-					if (parts.length == 3) {
-						String username = parts[0].trim();
-						String password = parts[1].trim();
-						boolean isAdmin = Boolean.parseBoolean(parts[2].trim());
-						// Prevent duplicate users
-						boolean alreadyExists = false;
-						for (User u : users) {
-							if (u.getUsername().equals(username)) {
-								alreadyExists = true;
-								break;
-							}
-						}
-						if (!alreadyExists) {
-							users.add(new User(username, password, isAdmin));
-						}
-					}
-				}
-				br.close();
-			}
-		} catch (IOException e) {
-			// Failed to read users
-		}
-	}
-	
-	public synchronized void saveUsersToFile() {
-		// Try multiple possible locations for the file
+	//user file location, All_Users.txt in the working dir or src/ when run from the project root
+	private File usersFile() {
 		File file = new File("All_Users.txt");
 		if (!file.exists() && new File("src/All_Users.txt").exists()) {
 			file = new File("src/All_Users.txt");
 		}
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
-			for (User user : users) {
-				String line = user.getUsername() + "|" + user.getPassword() + "|" + user.isAdmin();
-				bw.write(line);
-				bw.newLine();
-			}
-		} catch (IOException e) {
-			// Failed to save users
-		}
+		return file;
 	}
+	
 	//start server and accept clients
 	public void startServer() {
 		System.out.println("Waiting for client connections...");
+		if (transportMode == TransportMode.NIO) {
+			nioServer.start();
+			return;
+		}
 		while(true) {
 			try {
 				//waits until client connects
@@ -141,121 +132,264 @@ public class Server {
 	
 	//communication helpers
 	//like lets server send msg to all connected clients like gc message or server announcement
-	public synchronized void broadcast(Packet packet) {
-		//loop thru every connected clients output stream
-		for(Map.Entry<String, ObjectOutputStream> entry : clientOutputStreams.entrySet()) {
-			try {
-				ObjectOutputStream out = entry.getValue();
-				if(out != null) {
-					out.writeObject(packet);
-					out.flush(); //send immediately
-				}
-			}catch(IOException e) {
-				// Failed to send packet
-			}
+	//no server wide lock here and no socket io, each handler just queues the packet for its own writer
+	public void broadcast(Packet packet) {
+		//loop thru every connected clients handler
+		for(ClientHandler handler : clientOutputStreams.values()) {
+			handler.send(packet);
 		}
 	}
 	
 	//targetting packet to specific client
-	public synchronized void sendToClient(User targetUser, Packet packet) {
-		ObjectOutputStream out = clientOutputStreams.get(targetUser.getUsername());
-		if(out != null) {
-			try {
-				out.writeObject(packet);
-				out.flush();
-			}catch (IOException e) {
-				// Remove from maps if stream is broken
-				clientOutputStreams.remove(targetUser.getUsername());
-				activeClients.remove(targetUser.getUsername());
-			}
+	public void sendToClient(User targetUser, Packet packet) {
+		ClientHandler handler = clientOutputStreams.get(targetUser.getUsername());
+		if(handler != null) {
+			//a broken connection unregisters itself through removeClient
+			handler.send(packet);
 		}
 	}
 	
+	//number of packets queued for a user, 0 if not connected
+	public int getQueueDepth(String username) {
+		ClientHandler handler = clientOutputStreams.get(username);
+		return handler == null ? 0 : handler.getQueueDepth();
+	}
+	
+	//queue depth of every connected user, for spotting slow consumers
+	public Map<String, Integer> getQueueDepths() {
+		Map<String, Integer> depths = new HashMap<>();
+		for (Map.Entry<String, ClientHandler> entry : clientOutputStreams.entrySet()) {
+			depths.put(entry.getKey(), entry.getValue().getQueueDepth());
+		}
+		return depths;
+	}
+	
+	ExecutorService getExecutor() {
+		return threadPool;
+	}
+	
 	//add new client to activeClients map when they login
-	public synchronized void registeredClient(User u, Socket s, ObjectOutputStream out) {
-		activeClients.put(u.getUsername(), s);
-		clientOutputStreams.put(u.getUsername(), out);
+	public void registeredClient(User u, ClientHandler handler) {
+		activeClients.put(u.getUsername(), handler.getSocket());
+		clientOutputStreams.put(u.getUsername(), handler);
 		System.out.println("SERVER: Registered client: " + u.getUsername() + " (Total active clients: " + activeClients.size() + ")");
 	}
 	
 	//remove client from list when they disconnect
-	public synchronized void removeClient(User u) {
+	public void removeClient(User u) {
 		activeClients.remove(u.getUsername());
 		clientOutputStreams.remove(u.getUsername());
 	}
 	
-	//login verification hceck if username and pass match any known user
-	public synchronized boolean verifyLogin(String username, String password) {
-		for(User u : users) {
-			if(u.getUsername().equals(username) && u.getPassword().equals(password)) {
-				return true; //found matching
-			}
+	//remove client only if this handler is still the registered one (user may have logged in again elsewhere)
+	public void removeClient(User u, ClientHandler handler) {
+		if (clientOutputStreams.remove(u.getUsername(), handler)) {
+			activeClients.remove(u.getUsername());
 		}
-		return false; //not found
-	}
-	
-	//save load methods
-	//not implemented yet
-	public void saveLog() {
 	}
 	
-	public void saveUser() {
+	//login verification hceck if username and pass match any known user
+	public boolean verifyLogin(String username, String password) {
+		return findUserByCredentials(username, password).isPresent();
 	}
 	
-	public void stringToLog() {}
-	public void stringToUser() {}
-	public void createLog() {}
-	public Log getLog() {return null;}
-	public List<Log> getLogs(String UID){return null;}
-	public Log ViewUserLog(String username) {return null;}
-	
 	//getters
+	//snapshot, use addUser to create users
 	public List<User> getUsers(){
-		return users;
+		return new ArrayList<>(users.values());
 	}
 	
-	public synchronized Optional<User> findUserByCredentials(String username, String password){
-		return users.stream()
-				.filter(u -> u.getUsername().equals(username) && u.getPassword().equals(password))
-				.findFirst();
+	//adds a user unless the name is taken, atomic so two signups for one name can't both win
+	//the store saves just the new account
+	public boolean addUser(User user) {
+		if (users.putIfAbsent(user.getUsername(), user) != null) {
+			return false;
+		}
+		store.userAdded(user);
+		return true;
 	}
 	
-	public synchronized Optional<User> findUserByUsername(String username){
-		return users.stream()
-				.filter(u -> u.getUsername().equals(username))
-				.findFirst();
+	//fast path for recipient checks, no Optional or User needed
+	public boolean userExists(String username) {
+		return username != null && users.containsKey(username);
 	}
 	
-	public List<Message> getMasterLog(){
-		return masterLog;
+	public Optional<User> findUserByCredentials(String username, String password){
+		User u = username == null ? null : users.get(username);
+		if (u != null && u.getPassword().equals(password)) {
+			return Optional.of(u);
+		}
+		return Optional.empty();
+	}
+	
+	public Optional<User> findUserByUsername(String username){
+		return username == null ? Optional.empty() : Optional.ofNullable(users.get(username));
 	}
 	
 
-	public synchronized List<Message> getAllMessagesByUser(String username) {
-		List<Message> userMessages = new ArrayList<>();
-		
-		// Search through all groups
-		for (Group group : groups) {
-			for (Message msg : group.getMessages()) {
-				if (msg.getSender().equals(username)) {
+	public List<Message> getAllMessagesByUser(String username) {
+		return getMessagesByUser(username, null, null, 0, -1);
+	}
+	
+	//admin history query: the user's messages with from <= timestamp < to (null for an open end), oldest first
+	//offset/limit page through them, a negative limit returns the rest
+	//reads the metadata index, so the lock is held for the slice only, not for a scan of every conversation
+	public List<Message> getMessagesByUser(String username, LocalDateTime from, LocalDateTime to, int offset, int limit) {
+		conversationLock.lock();
+		try {
+			List<Message> userMessages = new ArrayList<>();
+			for (MetadataIndex.Ref ref : metadataIndex.slice("sender:" + username, from, to, offset, limit)) {
+				Message msg = indexed(ref.conversationKey, ref.timestamp, ref.seqKey);
+				if (msg != null) {
 					userMessages.add(msg);
 				}
 			}
+			return userMessages;
+		} finally {
+			conversationLock.unlock();
 		}
-		
-		// Search through all direct messages
-		for (DirectMessage dm : directChats) {
-			for (Message msg : dm.getMessage()) {
-				if (msg.getSender().equals(username)) {
-					userMessages.add(msg);
+	}
+	
+	//one page of refs for an admin history stream (see MessageStream): the user's messages with from <= timestamp < to,
+	//oldest first, starting right after the ref after, or offset refs in for the first page (after null)
+	List<MetadataIndex.Ref> getMessageRefsByUser(String username, LocalDateTime from, LocalDateTime to,
+			MetadataIndex.Ref after, int offset, int limit) {
+		conversationLock.lock();
+		try {
+			return after == null ? metadataIndex.slice("sender:" + username, from, to, offset, limit)
+					: metadataIndex.sliceAfter("sender:" + username, after, to, limit);
+		} finally {
+			conversationLock.unlock();
+		}
+	}
+	
+	//admin QUERY: messages matching every field of the query, oldest first, read through the returned scan
+	//the plan drives it from the smallest candidate list for the range (sender, recipient, conversation
+	//or the rarest text term), the scan checks the other fields on each message it reads
+	//with none of those set it walks the day buckets of the range instead
+	//only picking the plan holds the lock here, the candidates are read a page per chunk, see QueryScan
+	QueryScan queryMessages(AdminQuery query) {
+		LocalDateTime since = query.getSince();
+		LocalDateTime until = query.getUntil();
+		Set<String> terms = query.getText() == null ? Collections.emptySet() : MessageIndex.terms(query.getText());
+		List<String> keys = new ArrayList<>();
+		if (query.getSender() != null) {
+			keys.add("sender:" + query.getSender());
+		}
+		if (query.getRecipient() != null) {
+			keys.add("to:" + query.getRecipient());
+		}
+		if (query.getConversation() != null) {
+			keys.add("conv:" + query.getConversation());
+		}
+		String driver = null;
+		String driverTerm = null;
+		int candidates = Integer.MAX_VALUE;
+		List<String> days = null;
+		int skip = query.getOffset();
+		String plan;
+		conversationLock.lock();
+		try {
+			for (String key : keys) {
+				int n = metadataIndex.count(key, since, until);
+				if (n < candidates) {
+					candidates = n;
+					driver = key;
+				}
+			}
+			for (String term : terms) {
+				int n = searchIndex.documentFrequency(term);
+				if (n < candidates) {
+					candidates = n;
+					driver = null;
+					driverTerm = term;
 				}
 			}
+			
+			if (driverTerm != null) {
+				plan = "text:" + driverTerm + " (" + candidates + " candidates)";
+			} else if (driver != null) {
+				plan = driver + " (" + candidates + " candidates)";
+			} else {
+				//every ref in a day bucket of the range matches, so whole days before the offset are passed over here
+				days = metadataIndex.keys(since == null ? "day:" : "day:" + since.toLocalDate(),
+						until == null ? "day:\uffff" : "day:" + until.toLocalDate());
+				plan = "day buckets (" + days.size() + " days)";
+				int first = 0;
+				while (first < days.size() && skip >= metadataIndex.count(days.get(first), since, until)) {
+					skip -= metadataIndex.count(days.get(first), since, until);
+					first++;
+				}
+				days = days.subList(first, days.size());
+			}
+		} finally {
+			conversationLock.unlock();
 		}
-		
-		// Sort by timestamp (oldest first)
-		Collections.sort(userMessages, (m1, m2) -> m1.getTimestamp().compareTo(m2.getTimestamp()));
-		
-		return userMessages;
+		if (driverTerm != null) {
+			return new QueryScan(this, query, terms, plan, postingPages(driverTerm), skip);
+		}
+		if (driver != null) {
+			//a lone key needs no further checks, so the offset is a seek in the index
+			boolean exact = keys.size() == 1 && terms.isEmpty();
+			return new QueryScan(this, query, terms, plan, refPages(List.of(driver), since, until, exact ? skip : 0), exact ? 0 : skip);
+		}
+		return new QueryScan(this, query, terms, plan, refPages(days, since, until, skip), 0);
+	}
+	
+	//the refs under each of keys in turn with from <= timestamp < to, the first key's starting offset refs in,
+	//one page per call under the lock, each starting right after the last ref of the one before
+	private QueryScan.Candidates refPages(List<String> keys, LocalDateTime from, LocalDateTime to, int offset) {
+		int[] key = { 0 };
+		MetadataIndex.Ref[] cursor = { null };
+		return max -> {
+			conversationLock.lock();
+			try {
+				while (key[0] < keys.size()) {
+					String k = keys.get(key[0]);
+					List<MetadataIndex.Ref> page = cursor[0] == null ? metadataIndex.slice(k, from, to, key[0] == 0 ? offset : 0, max)
+							: metadataIndex.sliceAfter(k, cursor[0], to, max);
+					if (!page.isEmpty()) {
+						cursor[0] = page.get(page.size() - 1);
+						return page;
+					}
+					key[0]++;
+					cursor[0] = null;
+				}
+				return new ArrayList<>();
+			} finally {
+				conversationLock.unlock();
+			}
+		};
+	}
+	
+	//the messages containing term, oldest first
+	//postings are in indexing order, so all of them have to be sorted before the first page; they are copied
+	//QUERY_PAGE at a time with the lock let go in between (postings are only appended, a position stays put)
+	private QueryScan.Candidates postingPages(String term) {
+		List<MetadataIndex.Ref> refs = new ArrayList<>();
+		while (true) {
+			List<MessageIndex.Hit> hits;
+			conversationLock.lock();
+			try {
+				hits = searchIndex.postings(term, refs.size(), QUERY_PAGE);
+			} finally {
+				conversationLock.unlock();
+			}
+			for (MessageIndex.Hit hit : hits) {
+				refs.add(new MetadataIndex.Ref(hit.conversationKey, hit.time, hit.seqKey));
+			}
+			if (hits.size() < QUERY_PAGE) {
+				break;
+			}
+		}
+		//a stable sort keeps equal timestamps in indexing order
+		refs.sort((r1, r2) -> r1.timestamp.compareTo(r2.timestamp));
+		int[] next = { 0 };
+		return max -> {
+			List<MetadataIndex.Ref> page = new ArrayList<>(refs.subList(next[0], Math.min(refs.size(), next[0] + max)));
+			next[0] += page.size();
+			return page;
+		};
 	}
 	
 	public List<Group> getGroups() {
@@ -267,405 +401,572 @@ public class Server {
 	}
 	
 
-	public synchronized Group getGroupById(int groupUID) {
-		for (Group group : groups) {
-			if (group.getGroupUID() == groupUID) {
-				return group;
-			}
-		}
-		return null;
+	public Group getGroupById(int groupUID) {
+		return (Group) conversationsByKey.get("GROUP|" + groupUID);
 	}
 	
 
-	public synchronized DirectMessage getDirectMessageById(int chatUID) {
-		for (DirectMessage dm : directChats) {
-			if (dm.getChatUID() == chatUID) {
-				return dm;
+	public DirectMessage getDirectMessageById(int chatUID) {
+		return (DirectMessage) conversationsByKey.get("DM|" + chatUID);
+	}
+	
+	//index key of a Group or DirectMessage, same "TYPE|UID" form as the message file uses
+	static String conversationKey(Object conversation) {
+		if (conversation instanceof Group) {
+			return "GROUP|" + ((Group) conversation).getGroupUID();
+		}
+		return "DM|" + ((DirectMessage) conversation).getChatUID();
+	}
+	
+	private static List<Message> messagesOf(Object conversation) {
+		return conversation instanceof Group ? ((Group) conversation).getMessages() : ((DirectMessage) conversation).getMessage();
+	}
+	
+	//the message an index entry points at, null if its conversation doesn't have it
+	private Message indexed(String conversationKey, LocalDateTime timestamp, long seqKey) {
+		List<Message> messages = messagesOf(conversationsByKey.get(conversationKey));
+		int position = Message.find(messages, timestamp, seqKey);
+		return position < 0 ? null : messages.get(position);
+	}
+	
+	//the messages a batch of refs points at, in order, null where a conversation doesn't have one
+	//one lock hold for the whole batch
+	List<Message> indexed(List<MetadataIndex.Ref> refs) {
+		conversationLock.lock();
+		try {
+			List<Message> result = new ArrayList<>(refs.size());
+			for (MetadataIndex.Ref ref : refs) {
+				result.add(indexed(ref.conversationKey, ref.timestamp, ref.seqKey));
 			}
+			return result;
+		} finally {
+			conversationLock.unlock();
 		}
-		return null;
 	}
-
-	private boolean participantsMatch(List<String> list1, List<String> list2) {
-		if (list1.size() != list2.size()) {
-			return false;
+	
+	//what a message is filed under in the metadata index
+	private static List<String> metadataKeys(String conversationKey, Message msg) {
+		List<String> keys = new ArrayList<>(msg.getRecipients().size() + 3);
+		keys.add("sender:" + msg.getSender());
+		for (String recipient : msg.getRecipients()) {
+			keys.add("to:" + recipient);
 		}
-		List<String> sorted1 = new ArrayList<>(list1);
-		List<String> sorted2 = new ArrayList<>(list2);
-		Collections.sort(sorted1);
-		Collections.sort(sorted2);
-		return sorted1.equals(sorted2);
+		keys.add("conv:" + conversationKey);
+		keys.add("day:" + msg.getTimestamp().toLocalDate());
+		return keys;
 	}
 	
-
-	public synchronized Object findOrCreateGroup(List<String> participants, String sender, String messageText, LocalDateTime timestamp) {
-		// Check if exactly 2 participants (DirectMessage)
-		if (participants.size() == 2) {
-			// Check existing direct messages
-			for (DirectMessage dm : directChats) {
-				if (participantsMatch(dm.getGroupUsers(), participants)) {
-					return dm;
-				}
+	//called once msg is in its conversation and handed to the store, so a failed add leaves its id free for the retry
+	private void rememberMessageId(Message msg) {
+		if (msg.getId() != null) {
+			recentMessageIds.add(msg.getSender() + "|" + msg.getId());
+		}
+	}
+	
+	//add a new conversation and all its members to the participant index
+	//and tell the store which list belongs to it
+	//its messages go into the search and metadata indexes separately, see createConversation and startIndexer
+	private void indexConversation(Object conversation) {
+		String key = conversationKey(conversation);
+		conversationsByKey.put(key, conversation);
+		if (conversation instanceof Group) {
+			Group group = (Group) conversation;
+			group.setMemberListener(this::memberAdded);
+			String members = membersKey(false, group.getGroupUsers());
+			conversationsByMembers.put(members, group);
+			for (String username : group.getGroupUsers()) {
+				indexMember(group, username);
 			}
-			// Create new DirectMessage
-			String recipient = participants.get(0).equals(sender) ? participants.get(1) : participants.get(0);
-			DirectMessage newDM = new DirectMessage(sender, recipient, messageText, timestamp);
-			directChats.add(newDM);
-			modified = true;
-			return newDM;
+			store.conversationAdded("GROUP", group.getGroupUID(), members, group.getMessages());
 		} else {
-			// Check existing groups
-			for (Group group : groups) {
-				if (participantsMatch(group.getGroupUsers(), participants)) {
-					return group;
-				}
+			DirectMessage dm = (DirectMessage) conversation;
+			String members = membersKey(true, dm.getGroupUsers());
+			conversationsByMembers.put(members, dm);
+			for (String username : dm.getGroupUsers()) {
+				indexMember(dm, username);
 			}
-			// Create new Group
-			List<String> recipients = new ArrayList<>(participants);
-			recipients.remove(sender);
-			Group newGroup = new Group(sender, recipients, messageText, timestamp);
-			groups.add(newGroup);
-			modified = true;
-			return newGroup;
+			store.conversationAdded("DM", dm.getChatUID(), members, dm.getMessage());
 		}
 	}
 	
-
-	public synchronized List<Object> getGroupsForUser(String username) {
-		List<Object> userGroups = new ArrayList<>();
-		
-		for (Group group : groups) {
-			List<String> participants = group.getGroupUsers();
-			if (participants.contains(username)) {
-				// Force read of all messages to ensure they're in memory before adding to list
-				List<Message> msgs = group.getMessages();
-				for (Message m : msgs) {
-					m.getSender(); // Force read
-				}
-				userGroups.add(group);
+	private void indexMember(Object conversation, String username) {
+		conversationsByUser.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(conversationKey(conversation));
+	}
+	
+	//called by Group when someone is added later on, the group now answers to a different member set
+	private void memberAdded(Object conversation, String username) {
+		Group group = (Group) conversation;
+		List<String> before = new ArrayList<>(group.getGroupUsers());
+		before.remove(username);
+		conversationsByMembers.remove(membersKey(false, before), group);
+		String members = membersKey(false, group.getGroupUsers());
+		conversationsByMembers.put(members, group);
+		indexMember(group, username);
+		store.membersChanged("GROUP", group.getGroupUID(), members);
+	}
+	
+	//canonical key for a participant set: kind plus the sorted, deduplicated member names
+	//e.g. "DM|Alice,Bob", so order and repeats in the incoming list don't matter
+	static String membersKey(boolean direct, Collection<String> participants) {
+		return (direct ? "DM|" : "GROUP|") + String.join(",", new TreeSet<>(participants));
+	}
+	
+	//existing conversation for exactly these participants, null if there is none yet
+	public Object findGroup(List<String> participants) {
+		return conversationsByMembers.get(membersKey(participants.size() == 2, participants));
+	}
+	
+	//a client's send: stores msg in the conversation of participants, starting that conversation with it if there is none
+	//returns the conversation, or null if msg is a retry of a send already stored (same sender and id within the dedup window)
+	//the id check, the insert and recording the id are one hold of conversationLock, so two copies of a retry
+	//can't both get in, and a failed insert leaves the id free for the next one
+	public Object storeMessage(List<String> participants, Message msg) {
+		conversationLock.lock();
+		try {
+			if (msg.getId() != null && recentMessageIds.contains(msg.getSender() + "|" + msg.getId())) {
+				return null;
 			}
-		}
-		
-		for (DirectMessage dm : directChats) {
-			List<String> participants = dm.getGroupUsers();
-			if (participants.contains(username)) {
-				// Force read of all messages to ensure they're in memory before adding to list
-				List<Message> msgs = dm.getMessage();
-				for (Message m : msgs) {
-					m.getSender(); // Force read
-				}
-				userGroups.add(dm);
+			Object conversation = findGroup(participants);
+			if (conversation == null) {
+				return createConversation(participants, msg);
 			}
+			if (conversation instanceof Group) {
+				addMessageToGroup((Group) conversation, msg);
+			} else {
+				addMessageToDirectMessage((DirectMessage) conversation, msg);
+			}
+			return conversation;
+		} finally {
+			conversationLock.unlock();
 		}
-		
-		return userGroups;
 	}
 	
-
-	private void sortMessagesByTimestamp(Group group) {
-		Collections.sort(group.getMessages(), (m1, m2) -> 
-			m1.getTimestamp().compareTo(m2.getTimestamp()));
+	public Object findOrCreateGroup(List<String> participants, String sender, String messageText, LocalDateTime timestamp) {
+		List<String> recipients = new ArrayList<>(participants);
+		recipients.remove(sender);
+		Object created = createConversation(participants, new Message(timestamp, messageText, sender, recipients));
+		return created != null ? created : findGroup(participants);
+	}
+	
+	//starts the conversation of participants with first as its first message
+	//returns null if it already exists (maybe created by another thread meanwhile), first is then not added
+	public Object createConversation(List<String> participants, Message first) {
+		// Check if exactly 2 participants (DirectMessage)
+		boolean direct = participants.size() == 2;
+		String key = membersKey(direct, participants);
+		if (conversationsByMembers.containsKey(key)) {
+			return null;
+		}
+		conversationLock.lock();
+		try {
+			//check again, someone may have created it while we waited for the lock
+			if (conversationsByMembers.containsKey(key)) {
+				return null;
+			}
+			String sender = first.getSender();
+			if (direct) {
+				// Create new DirectMessage
+				String recipient = participants.get(0).equals(sender) ? participants.get(1) : participants.get(0);
+				List<Message> messages = store.newMessageList(key);
+				DirectMessage newDM = new DirectMessage(new ArrayList<>(List.of(sender, recipient)), messages);
+				first.setSeq(newDM.nextSeq()); //before the add, a stored list writes the message right away
+				messages.add(first);
+				directChats.add(newDM);
+				indexConversation(newDM);
+				indexMessage(conversationKey(newDM), first);
+				store.messageAdded("DM", newDM.getChatUID(), first);
+				rememberMessageId(first);
+				return newDM;
+			} else {
+				// Create new Group
+				List<Message> messages = store.newMessageList(key);
+				List<String> members = new ArrayList<>(participants);
+				members.remove(sender);
+				members.add(0, sender);
+				Group newGroup = new Group(members, messages);
+				first.setSeq(newGroup.nextSeq()); //before the add, a stored list writes the message right away
+				messages.add(first);
+				newGroup.sendNotification();
+				groups.add(newGroup);
+				indexConversation(newGroup);
+				indexMessage(conversationKey(newGroup), first);
+				store.messageAdded("GROUP", newGroup.getGroupUID(), first);
+				rememberMessageId(first);
+				return newGroup;
+			}
+		} finally {
+			conversationLock.unlock();
+		}
 	}
 	
 
-	private void sortMessagesByTimestamp(DirectMessage dm) {
-		Collections.sort(dm.getMessage(), (m1, m2) -> 
-			m1.getTimestamp().compareTo(m2.getTimestamp()));
+	public List<Object> getGroupsForUser(String username) {
+		return getGroupsForUser(username, Integer.MAX_VALUE);
 	}
 	
-	/**
-	 * Sorts all messages in all groups and direct messages
-	 */
-	public synchronized void sortAllMessages() {
-		for (Group group : groups) {
-			sortMessagesByTimestamp(group);
-		}
-		for (DirectMessage dm : directChats) {
-			sortMessagesByTimestamp(dm);
+	//conversations of a user with at most the newest recent messages each, older ones are fetched with HISTORY requests
+	public List<Object> getGroupsForUser(String username, int recent) {
+		conversationLock.lock();
+		try {
+			List<Object> userGroups = new ArrayList<>();
+			Set<String> keys = conversationsByUser.getOrDefault(username, Collections.emptySet());
+			for (String key : keys) {
+				Object conversation = conversationsByKey.get(key);
+				//copy under the lock, other threads append and sort while this one is being serialized
+				if (conversation instanceof Group) {
+					userGroups.add(((Group) conversation).snapshot(recent));
+				} else if (conversation instanceof DirectMessage) {
+					userGroups.add(((DirectMessage) conversation).snapshot(recent));
+				}
+			}
+			//same order as before the index: groups then direct messages, oldest first
+			userGroups.sort(Comparator.comparing((Object c) -> c instanceof DirectMessage)
+					.thenComparingInt(c -> c instanceof Group ? ((Group) c).getGroupUID() : ((DirectMessage) c).getChatUID()));
+			return userGroups;
+		} finally {
+			conversationLock.unlock();
 		}
 	}
 	
 
-	public synchronized void addMessageToGroup(Group group, Message message) {
-		group.getMessages().add(message);
-		sortMessagesByTimestamp(group); // Keep sorted
-		group.sendNotification();
-		modified = true;
-		// Don't save to file here - do it asynchronously to avoid blocking serialization
-		// saveGroupsToFile(); // Persist after update - moved to async
+	//reconnect: seen holds "TYPE|uid" -> the last seq the client has of each conversation it kept
+	//returns [deltas, pages], deltas are copies holding only the messages with a higher seq, for the client to merge
+	//pages are snapshot(recent) copies that replace the client's copy, for conversations it doesn't have
+	//or is too far behind on (more than recent missed, or a seq this server never handed out)
+	public List<Object> syncGroupsForUser(String username, Map<String, Long> seen, int recent) {
+		conversationLock.lock();
+		try {
+			List<Object> deltas = new ArrayList<>();
+			List<Object> pages = new ArrayList<>();
+			Set<String> keys = conversationsByUser.getOrDefault(username, Collections.emptySet());
+			for (String key : keys) {
+				Object conversation = conversationsByKey.get(key);
+				boolean isGroup = conversation instanceof Group;
+				long lastSeq = isGroup ? ((Group) conversation).getLastSeq() : ((DirectMessage) conversation).getLastSeq();
+				Long since = seen.get(key);
+				if (since == null || since > lastSeq || lastSeq - since > recent) {
+					pages.add(isGroup ? ((Group) conversation).snapshot(recent) : ((DirectMessage) conversation).snapshot(recent));
+					continue;
+				}
+				//seqs are dense, so exactly lastSeq - since messages are missing, nearly always the last ones
+				List<Message> messages = isGroup ? ((Group) conversation).getMessages() : ((DirectMessage) conversation).getMessage();
+				List<Message> missed = new ArrayList<>();
+				for (int i = messages.size() - 1; i >= 0 && missed.size() < lastSeq - since; i--) {
+					if (messages.get(i).getSeq() > since) {
+						missed.add(messages.get(i));
+					}
+				}
+				Collections.reverse(missed);
+				if (isGroup) {
+					Group group = (Group) conversation;
+					deltas.add(new Group(group.getGroupUID(), new ArrayList<>(group.getGroupUsers()), missed));
+				} else {
+					DirectMessage dm = (DirectMessage) conversation;
+					deltas.add(new DirectMessage(dm.getChatUID(), new ArrayList<>(dm.getGroupUsers()), missed));
+				}
+			}
+			List<Object> result = new ArrayList<>();
+			result.add(deltas);
+			result.add(pages);
+			return result;
+		} finally {
+			conversationLock.unlock();
+		}
 	}
 	
-	// Async file save to avoid blocking
-	public void saveGroupsToFileAsync() {
-		new Thread(() -> {
-			saveGroupsToFile();
-		}).start();
+
+	public void addMessageToGroup(Group group, Message message) {
+		conversationLock.lock();
+		try {
+			message.setSeq(group.nextSeq());
+			Message.insertInOrder(group.getMessages(), message); // Keep sorted
+			indexMessage(conversationKey(group), message);
+			group.sendNotification();
+			//persist just this message
+			store.messageAdded("GROUP", group.getGroupUID(), message);
+			rememberMessageId(message);
+		} finally {
+			conversationLock.unlock();
+		}
 	}
 	
 
-	public synchronized void addMessageToDirectMessage(DirectMessage dm, Message message) {
-		dm.getMessage().add(message);
-		sortMessagesByTimestamp(dm); // Keep sorted
-		dm.sendNotifcation();
-		modified = true;
-		// Don't save to file here - do it asynchronously to avoid blocking serialization
-		// saveGroupsToFile(); // Persist after update - moved to async
+	public void addMessageToDirectMessage(DirectMessage dm, Message message) {
+		conversationLock.lock();
+		try {
+			message.setSeq(dm.nextSeq());
+			Message.insertInOrder(dm.getMessage(), message); // Keep sorted
+			indexMessage(conversationKey(dm), message);
+			dm.sendNotifcation();
+			//persist just this message
+			store.messageAdded("DM", dm.getChatUID(), message);
+			rememberMessageId(message);
+		} finally {
+			conversationLock.unlock();
+		}
+	}
+	
+	//a new message (it has a seq) into the search and metadata indexes
+	private void indexMessage(String conversationKey, Message message) {
+		searchIndex.add(conversationKey, message.getSeq(), message);
+		metadataIndex.add(metadataKeys(conversationKey, message), conversationKey, message.getSeq(), message);
 	}
 	
 	//shutting down
 	public void shutdown() {
+		store.close(); //flush queued messages
 		try {
+			if (nioServer != null) {
+				nioServer.shutdown();
+				return;
+			}
 			//stop all client threads
-			threadPool.shutdownNow();
+			if (threadPool != null) {
+				threadPool.shutdownNow();
+			}
 			
 			//close socket so no connections
-			serverSocket.close();
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
 			
 		}catch(IOException e) {
 		}
 	}
 
-	public String toString(List<Message> msgs) {
-		String s = "";
-		for (int i = 0; i < msgs.size()-1; i++) {
-			s += msgs.get(i).toString() + "\n\n";
+	//message file location, All_Messages.txt in the working dir or src/ when run from the project root
+	private File messagesFile() {
+		File file = new File("All_Messages.txt");
+		if (!file.exists() && new File("src/All_Messages.txt").exists()) {
+			file = new File("src/All_Messages.txt");
 		}
-		s += msgs.get(msgs.size()-1).toString();
-		return s;
+		return file;
 	}
-
-	private void saveMsgs() {
-		String buf = "";
-		File file = new File(msgsFile);
+	
+	//completes once the messages added so far are saved as the durability mode promises
+	public CompletableFuture<Void> whenPersisted() {
+		return store.whenPersisted();
+	}
+	
+	//messages [from, to) of a conversation, oldest first
+	//HISTORY: up to limit messages just before the one at (before, beforeKey), see Message.seqKey,
+	//a null before pages back from the newest message
+	//returns [older, page], older is how many messages come before the page, null if there is no such message
+	public List<Object> readHistory(String type, int uid, LocalDateTime before, long beforeKey, int limit) {
+		conversationLock.lock();
 		try {
-			if (file.exists()) {
-				file.delete();
+			Object conversation = conversationsByKey.get(type + "|" + uid);
+			if (conversation == null) {
+				return null;
 			}
-			file.createNewFile();
-		} catch (IOException e) {
-			return;
+			List<Message> messages = messagesOf(conversation);
+			int to = before == null ? messages.size() : Message.find(messages, before, beforeKey);
+			if (to < 0) {
+				return null;
+			}
+			int from = Math.max(0, to - limit);
+			List<Object> result = new ArrayList<>();
+			result.add(from);
+			result.add(store.read(type, uid, from, to));
+			return result;
+		} finally {
+			conversationLock.unlock();
 		}
+	}
+	
+	public int getHistoryPageSize() {
+		return historyPage;
+	}
+	
+	//true if the user is a member of the conversation "TYPE|uid", history is only shown to members
+	public boolean isMember(String type, int uid, String username) {
+		return conversationsByUser.getOrDefault(username, Collections.emptySet()).contains(type + "|" + uid);
+	}
+	
+	//SEARCH: ranked hits for the query in the user's conversations (every conversation for admins)
+	//returns [total hits, hit...], one page of them, a hit is [kind, uid, position, Message]
+	public List<Object> searchMessages(String username, boolean everything, String query, int page, int pageSize) {
+		conversationLock.lock();
 		try {
-			FileWriter fw = new FileWriter(file);
-			fw.write("-----DIRECT MESSAGES-----\n\n");
-			for (int i = 0; i < directChats.size(); i++) {
-				buf = directChats.get(i).toString();
-				fw.write(buf + "\n\n");
-			}
-			fw.write("-----GROUP CHATS-----\n\n");
-			for (int i = 0; i < groups.size(); i++) {
-				buf = groups.get(i).toString();
-				fw.write(buf + "\n\n");
-			}
-			if (!groups.isEmpty()) {
-				buf = groups.get(groups.size() - 1).toString();
-				fw.write(buf);
-			}
-			fw.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			//System.out.println("IO filewriter error");
-			JOptionPane.showMessageDialog(null, "IO filewriter error");
-			//e.printStackTrace();
-			return;
+			Set<String> allowed = everything ? null : conversationsByUser.getOrDefault(username, Collections.emptySet());
+			List<MessageIndex.Hit> hits = searchIndex.search(query, allowed);
+			List<Object> result = new ArrayList<>();
+			result.add(hits.size());
+			int from = Math.min(hits.size(), Math.max(0, page) * pageSize);
+			for (MessageIndex.Hit hit : hits.subList(from, Math.min(hits.size(), from + pageSize))) {
+				List<Message> messages = messagesOf(conversationsByKey.get(hit.conversationKey));
+				int position = Message.find(messages, hit.timestamp, hit.seqKey);
+				if (position < 0) {
+					continue;
+				}
+				int bar = hit.conversationKey.indexOf('|');
+				List<Object> item = new ArrayList<>();
+				item.add(hit.conversationKey.substring(0, bar));
+				item.add(Integer.parseInt(hit.conversationKey.substring(bar + 1)));
+				item.add(position);
+				item.add(messages.get(position));
+				result.add(item);
+			}
+			return result;
+		} finally {
+			conversationLock.unlock();
 		}
-		modified = false;
 	}
-
-	public String loadData(String filename) {
-		// Note: msgsFile is final, cannot be reassigned
-		// This method signature may need to be refactored
-		String buf = "";
+	
+	//message store counters, e.g. hot/cold history and the heap budget with -Dchat.tiering=true
+	public Map<String, Long> getStoreStats() {
+		Map<String, Long> stats = new LinkedHashMap<>(store.getStats());
+		conversationLock.lock();
 		try {
-		File file = new File(filename);
-		Scanner scan = new Scanner(file);
-		while (scan.hasNextLine()) {
-			buf += scan.nextLine() + '\n';
-		}
-		scan.close();
-			return buf;
-		} catch (FileNotFoundException e) {
-			JOptionPane.showMessageDialog(null, "File not found!");
-			return "\nLOADING ERROR\n";
+			stats.put("indexedMessages", searchIndex.getMessageCount());
+			stats.put("indexedTerms", (long) searchIndex.getTermCount());
+			stats.put("metadataKeys", (long) metadataIndex.getKeyCount());
+			stats.put("unindexedConversations", (long) unindexed.size());
+		} finally {
+			conversationLock.unlock();
 		}
+		return stats;
 	}
-
-	private void loadMsgs() {
 	
-		String s = loadData(msgsFile);
-		if (s == null || s.isEmpty()) {
-			return;
+	//memory, log (or segments) and file (default), log falls back to file if its folder can't be opened
+	private MessageStore openStore(String kind) {
+		MessageStore opened = null;
+		if ("memory".equalsIgnoreCase(kind)) {
+			//nothing gets saved, the user file is only read so people can log in
+			opened = new MemoryMessageStore(new UserFile(usersFile()).read());
+		} else if ("log".equalsIgnoreCase(kind) || "segments".equalsIgnoreCase(kind)) {
+			File dir = new File(messagesFile().getAbsoluteFile().getParentFile(), "message-store");
+			try {
+				opened = new LogMessageStore(dir, messagesFile(), usersFile());
+			} catch (IOException e) {
+				System.out.println("Can't open message store " + dir + ", using All_Messages.txt");
+			}
 		}
-		
-		// Parse file content - this is a simplified version
-		// Full implementation would need proper serialization/deserialization
-		String[] parts = s.split("~");
-		if (parts.length >= 4) {
-			String dmsStr = parts[1];
-			String groupsStr = parts[3];
-			
-			// Parse direct messages
-			String[] dmLines = dmsStr.split("\n");
-			for (String line : dmLines) {
-				if (line != null && !line.trim().isEmpty()) {
-					// TODO: Deserialize DirectMessage from line
+		if (opened == null) {
+			opened = new FileMessageStore(messagesFile(), usersFile(), conversationLock);
+		}
+		System.out.println("Message store: " + opened);
+		return opened;
+	}
+	
+	private void loadConversations() {
+		conversationLock.lock();
+		try {
+			Map<String, Integer> uids = store.loadConversationIds();
+			Map<String, List<Message>> conversations = store.loadConversations();
+			//saved UIDs first, so conversations that need a new one can't take them
+			for (Map.Entry<String, Integer> entry : uids.entrySet()) {
+				if (entry.getKey().startsWith("DM|")) {
+					DirectMessage.reserveUid(entry.getValue());
+				} else {
+					Group.reserveUid(entry.getValue());
 				}
 			}
-			
-			// Parse groups
-			String[] groupLines = groupsStr.split("\n");
-			for (String line : groupLines) {
-				if (line != null && !line.trim().isEmpty()) {
-					// TODO: Deserialize Group from line
-				}
+			for (Map.Entry<String, List<Message>> entry : conversations.entrySet()) {
+				addLoadedConversation(entry.getKey(), uids.get(entry.getKey()), entry.getValue());
 			}
+		} finally {
+			conversationLock.unlock();
 		}
-		
-		modified = false;
 	}
 	
-	public synchronized void saveGroupsToFile() {
-		// Try multiple possible locations for the file
-		File file = new File("All_Messages.txt");
-		if (!file.exists() && new File("src/All_Messages.txt").exists()) {
-			file = new File("src/All_Messages.txt");
-		}
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
-			// Save DirectMessages - one message per line
-			for (DirectMessage dm : directChats) {
-				for (Message msg : dm.getMessage()) {
-					bw.write("MESSAGE|DM|" + dm.getChatUID() + "|");
-					bw.write(msg.getTimestamp().toString() + "|");
-					bw.write(msg.getSender() + "|");
-					bw.write(msg.getMessage().replace("|", "\\|").replace("\n", "\\n") + "|");
-					// Write recipients
-					for (int i = 0; i < msg.getRecipients().size(); i++) {
-						if (i > 0) bw.write(",");
-						bw.write(msg.getRecipients().get(i));
+	//indexes the loaded history on a background thread, so boot doesn't wait for every message
+	//(mapped segments and cold blocks included) to be decoded and tokenized
+	//each conversation is walked a batch at a time under the lock, resuming after the last message done
+	//by (timestamp, seq key) like a HISTORY cursor; messages stored since boot have a higher seq than the
+	//conversation had then and were indexed when they arrived, so they are skipped
+	//until it is done SEARCH, QUERY and admin history requests are refused instead of answered from part of the index
+	private void startIndexer() {
+		Thread indexer = new Thread(() -> {
+			long started = System.currentTimeMillis();
+			long count = 0;
+			while (true) {
+				String key;
+				long bootSeq;
+				conversationLock.lock();
+				try {
+					Iterator<Map.Entry<String, Long>> next = unindexed.entrySet().iterator();
+					if (!next.hasNext()) {
+						break;
 					}
-					bw.newLine();
+					Map.Entry<String, Long> entry = next.next();
+					key = entry.getKey();
+					bootSeq = entry.getValue();
+				} finally {
+					conversationLock.unlock();
 				}
+				count += indexLoadedHistory(key, bootSeq);
 			}
-			
-			// Save Groups - one message per line
-			for (Group group : groups) {
-				for (Message msg : group.getMessages()) {
-					bw.write("MESSAGE|GROUP|" + group.getGroupUID() + "|");
-					bw.write(msg.getTimestamp().toString() + "|");
-					bw.write(msg.getSender() + "|");
-					bw.write(msg.getMessage().replace("|", "\\|").replace("\n", "\\n") + "|");
-					// Write recipients
-					for (int i = 0; i < msg.getRecipients().size(); i++) {
-						if (i > 0) bw.write(",");
-						bw.write(msg.getRecipients().get(i));
+			historyIndexed = true;
+			System.out.println("SERVER: indexed " + count + " messages in " + (System.currentTimeMillis() - started) + " ms");
+		}, "indexer");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+	
+	//one loaded conversation's messages with seq <= bootSeq (or none), returns how many were indexed
+	private long indexLoadedHistory(String key, long bootSeq) {
+		long count = 0;
+		LocalDateTime after = null; //cursor: the last message done
+		long afterSeqKey = 0;
+		while (true) {
+			conversationLock.lock();
+			try {
+				List<Message> messages = messagesOf(conversationsByKey.get(key));
+				int start = after == null ? 0 : Message.find(messages, after, afterSeqKey) + 1;
+				int end = Math.min(messages.size(), start + INDEX_BATCH);
+				for (int i = start; i < end; i++) {
+					Message msg = messages.get(i);
+					long seqKey = Message.seqKey(messages, i);
+					if (msg.getSeq() <= bootSeq) {
+						searchIndex.add(key, seqKey, msg);
+						metadataIndex.add(metadataKeys(key, msg), key, seqKey, msg);
+						count++;
 					}
-					bw.newLine();
+					after = msg.getTimestamp();
+					afterSeqKey = seqKey;
+				}
+				if (end == messages.size()) {
+					unindexed.remove(key);
+					return count;
 				}
+			} finally {
+				conversationLock.unlock();
 			}
-		} catch (IOException e) {
 		}
 	}
-
-	private synchronized void loadGroupsFromFile() {
-		// Try multiple possible locations for the file
-		File file = new File("All_Messages.txt");
-		if (!file.exists()) {
-			// Try in src directory
-			file = new File("src/All_Messages.txt");
+	
+	//true once the loaded history is in the search and metadata indexes, see startIndexer
+	public boolean isHistoryIndexed() {
+		return historyIndexed;
+	}
+	
+	//Reconstruct a Group or DirectMessage from its members key, with the UID saved for it (null: new one)
+	//its seq counter continues from the highest seq in its history
+	//and the ids of its messages from within the dedup window are remembered, so a send retried across a restart is still dropped
+	private void addLoadedConversation(String membersKey, Integer uid, List<Message> messages) {
+		LocalDateTime recent = LocalDateTime.now().minusNanos(dedupWindow * 1_000_000L);
+		for (int i = messages.size() - 1; i >= 0 && messages.get(i).getTimestamp().isAfter(recent); i--) {
+			rememberMessageId(messages.get(i));
 		}
-		if (!file.exists()) {
-			return;
+		int bar = membersKey.indexOf('|');
+		String type = membersKey.substring(0, bar);
+		List<String> participantList = new ArrayList<>(Arrays.asList(membersKey.substring(bar + 1).split(",")));
+		if (uid != null && conversationsByKey.containsKey(type + "|" + uid)) {
+			uid = null; //taken, only possible if the UID file was edited by hand
 		}
-		
-		// Map to store messages by group: "TYPE|UID" -> List<Message>
-		Map<String, List<Message>> messagesByGroup = new HashMap<>();
-		// Map to store participants: "TYPE|UID" -> Set<String>
-		Map<String, Set<String>> participantsByGroup = new HashMap<>();
-		
-		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-			String line;
-			int messageCount = 0;
-			int lineNumber = 0;
-			while ((line = br.readLine()) != null) {
-				lineNumber++;
-				line = line.trim();
-				if (line.isEmpty()) {
-					continue;
-				}
-				if (!line.startsWith("MESSAGE|")) {
-					continue;
-				}
-				
-				String[] parts = line.split("\\|", -1);
-				if (parts.length < 7) {
-					continue;
-				}
-				
-				try {
-					String type = parts[1]; // "DM" or "GROUP"
-					int uid = Integer.parseInt(parts[2]);
-					LocalDateTime timestamp = LocalDateTime.parse(parts[3]);
-					String sender = parts[4];
-					String messageText = parts[5].replace("\\|", "|").replace("\\n", "\n");
-					String[] recipients = parts[6].split(",");
-					
-					List<String> recipientList = new ArrayList<>();
-					for (String r : recipients) {
-						if (!r.trim().isEmpty()) {
-							recipientList.add(r.trim());
-						}
-					}
-					
-					Message msg = new Message(timestamp, messageText, sender, recipientList);
-					
-					// Group key: "TYPE|UID"
-					String groupKey = type + "|" + uid;
-					
-					// Add message to group
-					if (!messagesByGroup.containsKey(groupKey)) {
-						messagesByGroup.put(groupKey, new ArrayList<>());
-						participantsByGroup.put(groupKey, new HashSet<>());
-					}
-					messagesByGroup.get(groupKey).add(msg);
-					
-					// Track participants (sender + recipients)
-					participantsByGroup.get(groupKey).add(sender);
-					participantsByGroup.get(groupKey).addAll(recipientList);
-					
-					messageCount++;
-				} catch (Exception e) {
-				}
-			}
-			
-			// Reconstruct Group and DirectMessage objects
-			int groupCount = 0;
-			for (Map.Entry<String, List<Message>> entry : messagesByGroup.entrySet()) {
-				String groupKey = entry.getKey();
-				List<Message> messages = entry.getValue();
-				Set<String> participantSet = participantsByGroup.get(groupKey);
-				
-				String[] keyParts = groupKey.split("\\|");
-				String type = keyParts[0];
-				// UID is not used - new UIDs will be assigned
-				
-				List<String> participantList = new ArrayList<>(participantSet);
-				
-				// Sort messages by timestamp
-				Collections.sort(messages, (m1, m2) -> 
-					m1.getTimestamp().compareTo(m2.getTimestamp()));
-				
-				if ("DM".equals(type)) {
-					DirectMessage dm = new DirectMessage(participantList, messages);
-					directChats.add(dm);
-					groupCount++;
-				} else if ("GROUP".equals(type)) {
-					Group group = new Group(participantList, messages);
-					groups.add(group);
-					groupCount++;
-				}
-			}
-			
-		} catch (IOException e) {
+		if ("DM".equals(type)) {
+			DirectMessage dm = uid != null ? new DirectMessage(uid, participantList, messages) : new DirectMessage(participantList, messages);
+			dm.setLastSeq(Message.lastSeq(messages));
+			directChats.add(dm);
+			indexConversation(dm);
+			unindexed.put(conversationKey(dm), dm.getLastSeq());
+		} else if ("GROUP".equals(type)) {
+			Group group = uid != null ? new Group(uid, participantList, messages) : new Group(participantList, messages);
+			group.setLastSeq(Message.lastSeq(messages));
+			groups.add(group);
+			indexConversation(group);
+			unindexed.put(conversationKey(group), group.getLastSeq());
 		}
 	}
 	
@@ -673,8 +974,15 @@ public class Server {
 	public static void main(String[] args) {
 		int port = 12345; //ex port number change when figure out which port using which client connects to
 		
+		//transport from first arg or -Dchat.transport, "nio" or "blocking" (default)
+		String mode = args.length > 0 ? args[0] : System.getProperty("chat.transport", "blocking");
+		//handler threads from second arg or -Dchat.threads, "virtual" or "platform" (default)
+		String threads = args.length > 1 ? args[1] : System.getProperty("chat.threads", "platform");
+		
 		//make new server istening on that port
-		Server server = new Server(port);
+		Server server = new Server(port, TransportMode.fromString(mode), ThreadMode.fromString(threads));
+		//flush the store (final snapshot for the file store) on ctrl-c / kill
+		Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
 		
 		//start server waiting for clients forvever till stopped
 		server.startServer();
@@ -0,0 +1,191 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+//binary image of the server state at one point of the message journal
+//  header        magic, version, journal generation, journal offset, users file stamp
+//  names         every user name used below, messages refer to them by index
+//  users         [name][password][admin]
+//  conversations [membersKey][cold blocks][count] then per message [epochSecond][nano][sender][text][recipients][seq][id]
+//                cold blocks are ColdStore references [offset][length][count][highest seq], only the hot messages are written out
+//boot reads this and only replays the journal from journalOffset, instead of parsing the whole text file
+public class Snapshot {
+	private static final int MAGIC = 0x43534e50; //"CSNP"
+	private static final int VERSION = 4; //1 had no cold blocks, 2 no seqs, 3 no client message ids
+
+	long generation; //MessageJournal generation the offset belongs to
+	long journalOffset; //bytes of the journal already included here
+	long usersModified; //All_Users.txt lastModified/length when the users were copied
+	long usersLength;
+	final List<User> users = new ArrayList<>();
+	final Map<String, List<Message>> conversations = new LinkedHashMap<>(); //Server.membersKey -> messages in order, TieredMessageList when some are cold
+
+	//null when the file is missing, unreadable or belongs to another journal generation
+	//cold is where the referenced blocks live
+	public static Snapshot read(File file, long expectedGeneration, ColdStore cold) {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			int version = in.readInt();
+			if (version < 1 || version > VERSION) {
+				return null;
+			}
+			Snapshot snap = new Snapshot();
+			snap.generation = in.readLong();
+			if (snap.generation != expectedGeneration) {
+				return null; //don't decode the rest for nothing
+			}
+			snap.journalOffset = in.readLong();
+			snap.usersModified = in.readLong();
+			snap.usersLength = in.readLong();
+
+			String[] names = new String[in.readInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = readString(in);
+			}
+			int userCount = in.readInt();
+			for (int i = 0; i < userCount; i++) {
+				String name = names[in.readInt()];
+				String password = readString(in);
+				snap.users.add(new User(name, password, in.readBoolean()));
+			}
+			int conversationCount = in.readInt();
+			for (int c = 0; c < conversationCount; c++) {
+				String key = readString(in);
+				List<ColdStore.Block> blocks = new ArrayList<>();
+				int blockCount = version >= 2 ? in.readInt() : 0;
+				for (int b = 0; b < blockCount; b++) {
+					blocks.add(new ColdStore.Block(in.readLong(), in.readInt(), in.readInt(), version >= 3 ? in.readLong() : 0));
+				}
+				int count = in.readInt();
+				List<Message> messages = new ArrayList<>(count + 16);
+				for (int i = 0; i < count; i++) {
+					LocalDateTime timestamp = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+					String sender = names[in.readInt()];
+					String text = readString(in);
+					int recipientCount = in.readInt();
+					List<String> recipients = new ArrayList<>(recipientCount);
+					for (int r = 0; r < recipientCount; r++) {
+						recipients.add(names[in.readInt()]);
+					}
+					Message msg = new Message(timestamp, text, sender, recipients);
+					msg.setSeq(version >= 3 ? in.readLong() : 0);
+					String id = version >= 4 ? readString(in) : "";
+					msg.setId(id.isEmpty() ? null : id);
+					messages.add(msg);
+				}
+				snap.conversations.put(key, blocks.isEmpty() ? messages : new TieredMessageList(cold, blocks, messages));
+			}
+			return snap;
+		} catch (IOException | RuntimeException e) {
+			return null; //truncated or corrupt, treat as no snapshot
+		}
+	}
+
+	//writes to a temp file, syncs it and renames it over the target, so the old snapshot stays valid until the new one is complete
+	public void write(File file) throws IOException {
+		Map<String, Integer> nameIds = new HashMap<>();
+		List<String> names = new ArrayList<>();
+		for (User user : users) {
+			nameId(nameIds, names, user.getUsername());
+		}
+		for (List<Message> messages : conversations.values()) {
+			for (Message msg : hotMessages(messages)) {
+				nameId(nameIds, names, msg.getSender());
+				for (String r : msg.getRecipients()) {
+					nameId(nameIds, names, r);
+				}
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			out.writeLong(journalOffset);
+			out.writeLong(usersModified);
+			out.writeLong(usersLength);
+			out.writeInt(names.size());
+			for (String name : names) {
+				writeString(out, name);
+			}
+			out.writeInt(users.size());
+			for (User user : users) {
+				out.writeInt(nameIds.get(user.getUsername()));
+				writeString(out, user.getPassword());
+				out.writeBoolean(user.isAdmin());
+			}
+			out.writeInt(conversations.size());
+			for (Map.Entry<String, List<Message>> entry : conversations.entrySet()) {
+				writeString(out, entry.getKey());
+				List<ColdStore.Block> blocks = entry.getValue() instanceof TieredMessageList
+						? ((TieredMessageList) entry.getValue()).getBlocks() : Collections.emptyList();
+				out.writeInt(blocks.size());
+				for (ColdStore.Block block : blocks) {
+					out.writeLong(block.offset);
+					out.writeInt(block.length);
+					out.writeInt(block.count);
+					out.writeLong(block.maxSeq);
+				}
+				List<Message> hot = hotMessages(entry.getValue());
+				out.writeInt(hot.size());
+				for (Message msg : hot) {
+					out.writeLong(msg.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+					out.writeInt(msg.getTimestamp().getNano());
+					out.writeInt(nameIds.get(msg.getSender()));
+					writeString(out, msg.getMessage());
+					out.writeInt(msg.getRecipients().size());
+					for (String r : msg.getRecipients()) {
+						out.writeInt(nameIds.get(r));
+					}
+					out.writeLong(msg.getSeq());
+					writeString(out, msg.getId());
+				}
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//the messages that are written out, cold ones are only referenced
+	private static List<Message> hotMessages(List<Message> messages) {
+		if (messages instanceof TieredMessageList) {
+			TieredMessageList tiered = (TieredMessageList) messages;
+			return tiered.hotPrefix(tiered.hotSize());
+		}
+		return messages;
+	}
+
+	private static void nameId(Map<String, Integer> nameIds, List<String> names, String name) {
+		if (!nameIds.containsKey(name)) {
+			nameIds.put(name, names.size());
+			names.add(name);
+		}
+	}
+
+	//writeUTF caps strings at 64k, messages can be longer
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+//compares the MessageStore backends on the same workload
+//append N messages over a few hundred conversations, page through history, then close and time the reopen
+//usage: java server.StoreBenchmark [messages] [backend,backend,...]   backends: memory, file, log
+//-Dchat.durability etc. apply to the file backend as usual
+public class StoreBenchmark {
+	private static final int CONVERSATIONS = 500;
+	private static final int PAGE = 50;
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		String[] backends = (args.length > 1 ? args[1] : "memory,file,log").split(",");
+		System.setProperty("chat.snapshot.seconds", System.getProperty("chat.snapshot.seconds", "0"));
+
+		System.out.printf("%-8s %10s %12s %12s %10s %10s%n", "backend", "messages", "append/s", "page reads/s", "close ms", "reopen ms");
+		for (String backend : backends) {
+			File dir = Files.createTempDirectory("store-bench").toFile();
+			ReentrantLock lock = new ReentrantLock();
+			MessageStore store = open(backend.trim(), dir, lock);
+			store.loadUsers();
+			store.loadConversations();
+
+			List<List<Message>> lists = new ArrayList<>();
+			for (int c = 0; c < CONVERSATIONS; c++) {
+				String key = Server.membersKey(true, List.of("user" + c, "user" + (c + 1)));
+				List<Message> list = store.newMessageList(key);
+				store.conversationAdded("DM", c, key, list);
+				lists.add(list);
+			}
+
+			Random random = new Random(7);
+			LocalDateTime time = LocalDateTime.of(2025, 1, 1, 0, 0);
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) {
+				int c = random.nextInt(CONVERSATIONS);
+				time = time.plusNanos(1_000_000);
+				Message msg = new Message(time, "benchmark message " + i, "user" + c, List.of("user" + (c + 1)));
+				lock.lock();
+				try {
+					Message.insertInOrder(lists.get(c), msg);
+					store.messageAdded("DM", c, msg);
+				} finally {
+					lock.unlock();
+				}
+			}
+			store.whenPersisted().join();
+			double appendRate = messages / ((System.nanoTime() - start) / 1e9);
+
+			int reads = 20000;
+			start = System.nanoTime();
+			for (int i = 0; i < reads; i++) {
+				int c = random.nextInt(CONVERSATIONS);
+				int count = store.count("DM", c);
+				int from = Math.max(0, count - PAGE - random.nextInt(Math.max(1, count)));
+				lock.lock();
+				try {
+					store.read("DM", c, from, from + PAGE);
+				} finally {
+					lock.unlock();
+				}
+			}
+			double readRate = reads / ((System.nanoTime() - start) / 1e9);
+
+			start = System.nanoTime();
+			store.close();
+			double closeMs = (System.nanoTime() - start) / 1e6;
+
+			double reopenMs = 0;
+			if (!"memory".equals(backend.trim())) {
+				start = System.nanoTime();
+				MessageStore reopened = open(backend.trim(), dir, new ReentrantLock());
+				reopened.loadUsers();
+				Map<String, List<Message>> loaded = reopened.loadConversations();
+				reopenMs = (System.nanoTime() - start) / 1e6;
+				int total = 0;
+				for (List<Message> list : loaded.values()) {
+					total += list.size();
+				}
+				if (total != messages) {
+					System.out.println(backend + ": reopened with " + total + " messages, expected " + messages);
+				}
+				reopened.close();
+			}
+			System.out.printf("%-8s %10d %12.0f %12.0f %10.1f %10.1f%n", backend.trim(), messages, appendRate, readRate, closeMs, reopenMs);
+			delete(dir);
+		}
+	}
+
+	private static MessageStore open(String backend, File dir, ReentrantLock lock) throws Exception {
+		File messagesFile = new File(dir, "All_Messages.txt");
+		File usersFile = new File(dir, "All_Users.txt");
+		if ("memory".equals(backend)) {
+			return new MemoryMessageStore();
+		}
+		if ("log".equals(backend)) {
+			return new LogMessageStore(new File(dir, "message-store"), messagesFile, usersFile);
+		}
+		return new FileMessageStore(messagesFile, usersFile, lock);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+//a conversation's message list backed by a SegmentStore, messages are decoded from the mapped
+//segments when asked for instead of living on the heap
+//the store only appends, so a late arrival is written at the end and the list keeps the timestamp
+//order itself: order maps position -> record number, 4 bytes per message, and stays null as long as
+//the two are the same (no late arrivals, the usual case)
+//records loaded from an earlier run are checked once, on first use, and sorted the same way
+public class StoredMessageList extends AbstractList<Message> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final transient SegmentStore store;
+	private final String key;
+	private transient int[] order;
+	private transient boolean checked;
+
+	public StoredMessageList(SegmentStore store, String key) {
+		this.store = store;
+		this.key = key;
+	}
+
+	@Override
+	public Message get(int index) {
+		return store.read(key, record(index));
+	}
+
+	@Override
+	public int size() {
+		return store.count(key);
+	}
+
+	@Override
+	public void add(int index, Message msg) {
+		check();
+		int size = size();
+		try {
+			store.append(key, msg);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (index < size && order == null) {
+			order = IntStream.range(0, size + 1).toArray();
+		}
+		if (order != null) {
+			if (order.length <= size) {
+				order = Arrays.copyOf(order, Math.max(16, size * 2));
+			}
+			System.arraycopy(order, index, order, index + 1, size - index);
+			order[index] = size;
+		}
+		modCount++;
+	}
+
+	//seq of the last record written, the highest one since seqs are handed out in arrival order
+	long lastSeq() {
+		int size = size();
+		return size == 0 ? 0 : store.read(key, size - 1).getSeq();
+	}
+
+	private int record(int index) {
+		check();
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Message " + index + " of " + key);
+		}
+		return order == null ? index : order[index];
+	}
+
+	//a stable sort by timestamp puts equal timestamps in arrival order, like Message.insertInOrder
+	private void check() {
+		if (checked) {
+			return;
+		}
+		checked = true;
+		int size = size();
+		for (int i = 1; i < size; i++) {
+			if (store.timestamp(key, i).isBefore(store.timestamp(key, i - 1))) {
+				order = IntStream.range(0, size).boxed()
+						.sorted(Comparator.comparing((Integer r) -> store.timestamp(key, r)))
+						.mapToInt(Integer::intValue).toArray();
+				return;
+			}
+		}
+	}
+
+	//goes over the wire (or into a copy) as a plain list
+	private Object writeReplace() throws ObjectStreamException {
+		return new ArrayList<>(this);
+	}
+}
@@ -0,0 +1,41 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//which kind of threads run the blocking client handlers
+public enum ThreadMode {
+	PLATFORM, //cached pool of os threads
+	VIRTUAL; //one virtual thread per task (java 21+)
+
+	public static ThreadMode fromString(String s) {
+		if (s != null && s.trim().equalsIgnoreCase("virtual")) {
+			return VIRTUAL;
+		}
+		return PLATFORM;
+	}
+
+	//false for VIRTUAL on a jdk without virtual threads, newExecutor then falls back to platform threads
+	public boolean isSupported() {
+		if (this == VIRTUAL) {
+			try {
+				Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//virtual threads are looked up reflectively so the code still builds and runs on older jdks
+	public ExecutorService newExecutor() {
+		if (this == VIRTUAL) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads need Java 21+, using platform threads");
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+}
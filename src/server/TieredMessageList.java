@@ -0,0 +1,142 @@
+package server;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.*;
+
+//a conversation's message list split in two tiers
+//  cold  the oldest messages, sealed into ColdStore blocks, read back through the store's cache when asked for
+//  hot   the recent messages as live objects
+//new messages always go to the hot tier, a late arrival that belongs before the sealed part lands at the start of hot
+public class TieredMessageList extends AbstractList<Message> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final transient ColdStore cold;
+	private final List<ColdStore.Block> blocks;
+	private int[] starts = new int[4]; //index of each block's first message
+	private int coldCount;
+	private final ArrayList<Message> hot;
+
+	public TieredMessageList(ColdStore cold) {
+		this(cold, new ArrayList<>(), new ArrayList<>());
+	}
+
+	public TieredMessageList(ColdStore cold, List<ColdStore.Block> blocks, List<Message> hot) {
+		this.cold = cold;
+		this.blocks = new ArrayList<>();
+		for (ColdStore.Block block : blocks) {
+			addBlock(block);
+		}
+		this.hot = new ArrayList<>(hot);
+	}
+
+	@Override
+	public Message get(int index) {
+		if (index >= coldCount) {
+			return hot.get(index - coldCount);
+		}
+		if (index < 0) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		int b = Arrays.binarySearch(starts, 0, blocks.size(), index);
+		if (b < 0) {
+			b = -b - 2; //block that starts before index
+		}
+		return cold.read(blocks.get(b)).get(index - starts[b]);
+	}
+
+	@Override
+	public int size() {
+		return coldCount + hot.size();
+	}
+
+	@Override
+	public void add(int index, Message msg) {
+		hot.add(Math.max(index, coldCount) - coldCount, msg);
+		modCount++;
+	}
+
+	@Override
+	public Message set(int index, Message msg) {
+		if (index < coldCount) {
+			throw new UnsupportedOperationException("Sealed messages can't be replaced");
+		}
+		return hot.set(index - coldCount, msg);
+	}
+
+	//only the hot tier can be out of order
+	@Override
+	public void sort(Comparator<? super Message> c) {
+		hot.sort(c);
+		modCount++;
+	}
+
+	public int hotSize() {
+		return hot.size();
+	}
+
+	public int coldSize() {
+		return coldCount;
+	}
+
+	//highest seq in the list, cold blocks know theirs so nothing is read from disk
+	public long lastSeq() {
+		long last = 0;
+		for (ColdStore.Block block : blocks) {
+			last = Math.max(last, block.maxSeq);
+		}
+		for (Message msg : hot) {
+			last = Math.max(last, msg.getSeq());
+		}
+		return last;
+	}
+
+	public List<ColdStore.Block> getBlocks() {
+		return new ArrayList<>(blocks);
+	}
+
+	//first count hot messages, what the sealer compresses
+	public List<Message> hotPrefix(int count) {
+		return new ArrayList<>(hot.subList(0, Math.min(count, hot.size())));
+	}
+
+	public Message hotMessage(int i) {
+		return hot.get(i);
+	}
+
+	//moves the first messages of the hot tier into block
+	//false if the hot tier no longer starts with exactly these messages (something was inserted meanwhile)
+	public boolean seal(List<Message> sealed, ColdStore.Block block) {
+		if (sealed.size() > hot.size()) {
+			return false;
+		}
+		for (int i = 0; i < sealed.size(); i++) {
+			if (hot.get(i) != sealed.get(i)) {
+				return false;
+			}
+		}
+		addBlock(block);
+		hot.subList(0, sealed.size()).clear();
+		modCount++;
+		return true;
+	}
+
+	//same blocks (they never change) and a copy of the hot tier
+	public TieredMessageList copy() {
+		return new TieredMessageList(cold, blocks, hot);
+	}
+
+	private void addBlock(ColdStore.Block block) {
+		if (blocks.size() == starts.length) {
+			starts = Arrays.copyOf(starts, starts.length * 2);
+		}
+		starts[blocks.size()] = coldCount;
+		blocks.add(block);
+		coldCount += block.count;
+	}
+
+	//goes over the wire (or into a copy) as a plain list
+	private Object writeReplace() throws ObjectStreamException {
+		return new ArrayList<>(this);
+	}
+}
@@ -0,0 +1,14 @@
+package server;
+
+//how the server talks to its sockets
+public enum TransportMode {
+	BLOCKING, //one ClientHandler thread per connection
+	NIO; //a few selector event loops shared by all connections
+
+	public static TransportMode fromString(String s) {
+		if (s != null && s.trim().equalsIgnoreCase("nio")) {
+			return NIO;
+		}
+		return BLOCKING;
+	}
+}
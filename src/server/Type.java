@@ -7,6 +7,9 @@ public enum Type {
 	LOGIN,
 	ERROR,
 	LOGOUT,
-	GROUP
+	GROUP,
+	HISTORY,
+	SEARCH,
+	QUERY
 }
 
@@ -0,0 +1,148 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+//All_Users.txt, one "username|password|admin" line per user, used as an append only log
+//a signup appends and syncs one line, the file is never truncated in place
+//compact() rewrites it through a temp file and an atomic rename, which happens by itself once the file has
+//lines that don't count (torn last line after a crash or a failed append, duplicates, junk):
+//read() finds them at startup, append() keeps counting them and compacts right after the one that added some
+public class UserFile {
+	private final File file;
+	private final ReentrantLock lock = new ReentrantLock(); //appends and compaction
+	private boolean endsWithNewline = true; //false after a torn last line, the next append starts a fresh line
+	private final Map<String, User> known = new LinkedHashMap<>(); //the users the file holds, what a compaction writes
+	private boolean loaded; //known came from read(), before that append can't compact
+	private int wasted; //lines in the file that don't count
+
+	public UserFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	//users in file order, first line for a name wins, empty if the file is missing
+	public List<User> read() {
+		Map<String, User> users = new LinkedHashMap<>();
+		if (!file.exists()) {
+			return new ArrayList<>();
+		}
+		lock.lock();
+		wasted = 0;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				// Format: username|password|admin(boolean)
+				//the admin field has to be spelled out, "tr" is what a torn "true" looks like
+				String[] parts = line.split("\\|");
+				String admin = parts.length == 3 ? parts[2].trim() : "";
+				if (admin.equals("true") || admin.equals("false")) {
+					String username = parts[0].trim();
+					String password = parts[1].trim();
+					if (users.putIfAbsent(username, new User(username, password, admin.equals("true"))) != null) {
+						wasted++;
+					}
+				} else {
+					wasted++;
+				}
+			}
+			endsWithNewline = endsWithNewline();
+			known.clear();
+			known.putAll(users);
+			loaded = true;
+			if (wasted > 0) {
+				compact(new ArrayList<>(users.values()));
+			}
+		} catch (IOException e) {
+			// Failed to read users
+		} finally {
+			lock.unlock();
+		}
+		return new ArrayList<>(users.values());
+	}
+
+	//one new account, O(1) io: append the line and sync it
+	//a compaction only follows when the file picked up a line that doesn't count
+	public void append(User user) {
+		lock.lock();
+		try {
+			write(user);
+			if (wasted > 0 && loaded) {
+				compact(new ArrayList<>(known.values()));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void write(User user) {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			String line = (endsWithNewline ? "" : "\n") + user.getUsername() + "|" + user.getPassword() + "|" + user.isAdmin() + "\n";
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+			endsWithNewline = true;
+			if (known.putIfAbsent(user.getUsername(), user) != null) {
+				wasted++;
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to save user " + user.getUsername() + ": " + e.getMessage());
+			//part of the line may be in the file, count it and start the next one on a fresh line
+			known.putIfAbsent(user.getUsername(), user);
+			wasted++;
+			endsWithNewline = false;
+		}
+	}
+
+	//rewrite the file with exactly these users, the old file stays intact until the rename
+	public void compact(Collection<User> users) {
+		lock.lock();
+		try {
+			File tmp = new File(file.getPath() + ".tmp");
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+				for (User user : users) {
+					bw.write(user.getUsername() + "|" + user.getPassword() + "|" + user.isAdmin());
+					bw.newLine();
+				}
+				bw.flush();
+				fos.getFD().sync();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			endsWithNewline = true;
+			wasted = 0;
+			known.clear();
+			for (User user : users) {
+				known.putIfAbsent(user.getUsername(), user);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to compact " + file + ": " + e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean endsWithNewline() throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() == 0) {
+				return true;
+			}
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		}
+	}
+}